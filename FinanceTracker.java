@@ -1,13 +1,77 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Main class for the Simplified Command-Line Finance Tracker.
@@ -15,37 +79,71 @@ import java.util.Scanner;
  * for the data models and service managers.
  *
  * This single file can be compiled with `javac FinanceTracker.java`
- * and run with `java FinanceTracker`.
+ * and run with `java FinanceTracker`. Run `java FinanceTracker --server [port]`
+ * to serve many users over HTTP instead, `java FinanceTracker --load-test`
+ * to put a running server under load, `java FinanceTracker --bench` to
+ * run the micro-benchmarks, and `java FinanceTracker --self-test` to check
+ * that concurrent changes to a user are never lost.
  */
 public class FinanceTracker {
 
     private static final Scanner scanner = new Scanner(System.in);
-    private static final PersistenceManager pm = new PersistenceManager();
+    // Created by main for the interactive CLI only; the other modes bring their own or need none
+    private static PersistenceManager pm;
+    private static UserCache users;
     private static final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+    private static final int SEARCH_RESULTS = 50;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            FinanceServer.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--load-test")) {
+            LoadTest.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmarks.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--self-test")) {
+            SelfTest.run(args);
+            return;
+        }
 
-    public static void main(String[] args) {
         System.out.println("=========================================");
         System.out.println(" Welcome to the CLI Finance Tracker (V1) ");
         System.out.println("=========================================");
 
-        while (true) {
-            System.out.println("\n--- Main Menu ---");
-            System.out.println("1. Login");
-            System.out.println("2. Register");
-            System.out.println("3. Exit");
-            System.out.print("Choose an option: ");
-            String choice = scanner.nextLine();
+        pm = new PersistenceManager();
+        // The CLI saves after every action itself, so no write-behind timer
+        users = new UserCache(pm, 16, Runtime.getRuntime().maxMemory() / 4, 0);
+        // Saves are written by a daemon thread, so write out what is queued however the JVM ends
+        Runtime.getRuntime().addShutdownHook(new Thread(pm::close));
+        try {
+            boolean running = true;
+            while (running) {
+                System.out.println("\n--- Main Menu ---");
+                System.out.println("1. Login");
+                System.out.println("2. Register");
+                System.out.println("3. Exit");
+                System.out.print("Choose an option: ");
+                String choice = scanner.nextLine();
 
-            switch (choice) {
-                case "1" -> handleLogin();
-                case "2" -> handleRegister();
-                case "3" -> {
-                    System.out.println("Thank you for using Finance Tracker. Goodbye!");
-                    return;
+                switch (choice) {
+                    case "1" -> handleLogin();
+                    case "2" -> handleRegister();
+                    case "3" -> running = false;
+                    default -> System.out.println("Invalid choice. Please try again.");
                 }
-                default -> System.out.println("Invalid choice. Please try again.");
             }
+        } catch (NoSuchElementException e) {
+            // Input ended; leave through the same flush as Exit
+            System.out.println();
         }
+        pm.close();
+        System.out.println("Thank you for using Finance Tracker. Goodbye!");
     }
 
     /**
@@ -57,10 +155,15 @@ public class FinanceTracker {
         System.out.print("Enter password: ");
         String password = scanner.nextLine(); // In a real app, use Console.readPassword()
 
-        User user = pm.loadUser(username);
-        if (user != null && user.checkPassword(password, pm)) {
+        // Only the credential index is consulted until the password checks out
+        User user = pm.authenticate(username, password) ? users.acquire(username) : null;
+        if (user != null) {
             System.out.println("\nWelcome back, " + user.username + "!");
-            showAppMenu(user);
+            try {
+                showAppMenu(user);
+            } finally {
+                users.release(user);
+            }
         } else {
             System.out.println("Error: Invalid username or password.");
         }
@@ -72,18 +175,21 @@ public class FinanceTracker {
     private static void handleRegister() {
         System.out.print("Enter new username: ");
         String username = scanner.nextLine();
-        if (pm.userExists(username)) {
-            System.out.println("Error: This username is already taken.");
+        try {
+            if (pm.userExists(username)) {
+                System.out.println("Error: This username is already taken.");
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
             return;
         }
         System.out.print("Enter new password: ");
         String password = scanner.nextLine();
         
-        String passwordHash = pm.hashPassword(password);
-        User newUser = new User(username, passwordHash);
-        pm.saveUser(newUser);
-
-        System.out.println("Registration successful! Please login.");
+        if (pm.registerUser(username, pm.newCredential(password)) != null) {
+            System.out.println("Registration successful! Please login.");
+        }
     }
 
     /**
@@ -100,7 +206,9 @@ public class FinanceTracker {
             System.out.println("4. Manage Categories");
             System.out.println("5. Manage Budgets");
             System.out.println("6. Run Reports");
-            System.out.println("7. Logout");
+            System.out.println("7. Import Transactions from CSV");
+            System.out.println("8. Search Transactions");
+            System.out.println("9. Logout");
             System.out.print("Choose an option: ");
             String choice = scanner.nextLine();
 
@@ -112,13 +220,17 @@ public class FinanceTracker {
                     case "4" -> handleManageCategories(user);
                     case "5" -> handleManageBudgets(user);
                     case "6" -> handleRunReports(user);
-                    case "7" -> {
+                    case "7" -> handleImportTransactions(user);
+                    case "8" -> handleSearchTransactions(user);
+                    case "9" -> {
                         loggedIn = false;
                         System.out.println("Logging out...");
+                        pm.saveUser(user);
+                        pm.flush(); // Whatever the durability, a logout leaves everything on disk
                     }
                     default -> System.out.println("Invalid choice. Please try again.");
                 }
-                // Save user data after every action
+                // Save user data after every action; written in the background
                 if (loggedIn) {
                     pm.saveUser(user);
                 }
@@ -142,7 +254,7 @@ public class FinanceTracker {
 
         try {
             System.out.print("Enter amount (positive for income, negative for expense): ");
-            double amount = Double.parseDouble(scanner.nextLine());
+            long amountCents = Money.parse(scanner.nextLine());
 
             System.out.print("Enter description: ");
             String description = scanner.nextLine();
@@ -150,14 +262,24 @@ public class FinanceTracker {
             System.out.print("Enter date (yyyy-MM-dd, press Enter for today): ");
             String dateStr = scanner.nextLine();
             Date date = dateStr.isEmpty() ? new Date() : dateFormatter.parse(dateStr);
+            Transaction.checkEpochDay(UserCodec.toEpochDay(date));
 
             System.out.println("Select Account:");
             Account selectedAccount = selectFromList(user.accounts);
 
-            System.out.println("Select Category:");
-            Category selectedCategory = selectFromList(user.categories);
+            Category selectedCategory = user.categorize(description);
+            if (selectedCategory != null) {
+                System.out.print("Use category '" + selectedCategory.name + "' from your rules (Y/N, press Enter for Y)? ");
+                if (scanner.nextLine().equalsIgnoreCase("N")) {
+                    selectedCategory = null;
+                }
+            }
+            if (selectedCategory == null) {
+                System.out.println("Select Category:");
+                selectedCategory = selectFromList(user.categories);
+            }
 
-            Transaction tx = new Transaction(amount, description, date, selectedCategory, selectedAccount);
+            Transaction tx = new Transaction(amountCents, description, date, selectedCategory, selectedAccount);
             user.addTransaction(tx);
             System.out.println("Transaction added successfully.");
 
@@ -165,17 +287,97 @@ public class FinanceTracker {
             System.out.println("Error: Invalid amount.");
         } catch (ParseException e) {
             System.out.println("Error: Invalid date format. Please use yyyy-MM-dd.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
         }
     }
 
     private static void handleViewTransactions(User user) {
+        int[] range = readDateRange();
+        if (range == null) {
+            return;
+        }
+        int fromDay = range[0];
+        int toDay = range[1];
+
         System.out.println("\n--- Your Transactions ---");
-        if (user.transactions.isEmpty()) {
+        int[] shown = new int[1];
+        user.forEachRowBetween(fromDay, toDay, row -> {
+            System.out.println(user.transactionAt(row));
+            shown[0]++;
+        });
+        if (shown[0] == 0) {
+            System.out.println("No transactions found.");
+        }
+    }
+
+    private static void handleSearchTransactions(User user) {
+        System.out.print("Search descriptions for: ");
+        String query = scanner.nextLine();
+
+        System.out.println("\n--- Matching Transactions ---");
+        DescriptionIndex.Matches matches = user.searchDescriptions(query, SEARCH_RESULTS);
+        for (int row : matches.rows) {
+            System.out.println(user.transactionAt(row));
+        }
+        if (matches.total == 0) {
             System.out.println("No transactions found.");
+        } else if (matches.total > matches.rows.length) {
+            System.out.println("Showing the best " + matches.rows.length + " of " + matches.total + " matches.");
+        }
+    }
+
+    private static void handleImportTransactions(User user) {
+        if (user.accounts.isEmpty()) {
+            System.out.println("Error: You must add an account first.");
+            return;
+        }
+        System.out.print("Enter CSV file paths, separated by ';' (date,description,amount[,category]): ");
+        List<ImportPipeline.Source> sources = new ArrayList<>();
+        for (String path : scanner.nextLine().split(";")) {
+            if (path.isBlank()) {
+                continue;
+            }
+            File file = new File(path.trim());
+            System.out.println("Select Account for " + file.getName() + ":");
+            sources.add(new ImportPipeline.Source(file, selectFromList(user.accounts)));
+        }
+        if (sources.isEmpty()) {
+            System.out.println("Error: No files given.");
             return;
         }
-        for (Transaction tx : user.transactions) {
-            System.out.println(tx);
+
+        try {
+            if (sources.size() == 1) {
+                // A single file streams straight into the store
+                ImportPipeline.Source source = sources.get(0);
+                try (Reader reader = new InputStreamReader(new FileInputStream(source.file), StandardCharsets.UTF_8)) {
+                    System.out.println(new StatementImporter(user, source.account).importFrom(reader));
+                }
+            } else {
+                System.out.println(new ImportPipeline(ForkJoinPool.commonPool()).importFiles(user, sources));
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Could not import: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Asks for an optional from and to date.
+     * @return {fromDay, toDay} as epoch days, open ends widened to the extremes; null if a date was invalid
+     */
+    private static int[] readDateRange() {
+        System.out.print("From date (yyyy-MM-dd, press Enter for the beginning): ");
+        String fromStr = scanner.nextLine().trim();
+        System.out.print("To date (yyyy-MM-dd, press Enter for the end): ");
+        String toStr = scanner.nextLine().trim();
+        try {
+            int fromDay = fromStr.isEmpty() ? Integer.MIN_VALUE : (int) LocalDate.parse(fromStr).toEpochDay();
+            int toDay = toStr.isEmpty() ? Integer.MAX_VALUE : (int) LocalDate.parse(toStr).toEpochDay();
+            return new int[] {fromDay, toDay};
+        } catch (DateTimeParseException e) {
+            System.out.println("Error: Invalid date format. Please use yyyy-MM-dd.");
+            return null;
         }
     }
 
@@ -190,11 +392,11 @@ public class FinanceTracker {
             System.out.print("Enter account name (e.g., Checking, Credit Card): ");
             String name = scanner.nextLine();
             System.out.print("Enter initial balance: ");
-            double balance = Double.parseDouble(scanner.nextLine());
+            long balanceCents = Money.parse(scanner.nextLine());
             System.out.print("Is this an asset (Y/N)? (e.g., Checking=Y, Credit Card=N): ");
             boolean isAsset = scanner.nextLine().equalsIgnoreCase("Y");
             
-            user.accounts.add(new Account(name, balance, isAsset));
+            user.addAccount(new Account(name, balanceCents, isAsset));
             System.out.println("Account '" + name + "' added.");
         } else if (choice.equals("2")) {
             System.out.println("\n--- Your Accounts ---");
@@ -212,13 +414,15 @@ public class FinanceTracker {
         System.out.println("\n--- Manage Categories ---");
         System.out.println("1. Add New Category");
         System.out.println("2. View All Categories");
+        System.out.println("3. Add Auto-Categorization Rule");
+        System.out.println("4. View Auto-Categorization Rules");
         System.out.print("Choose an option: ");
         String choice = scanner.nextLine();
 
         if (choice.equals("1")) {
             System.out.print("Enter category name (e.g., Groceries, Rent): ");
             String name = scanner.nextLine();
-            user.categories.add(new Category(name));
+            user.addCategory(new Category(name));
             System.out.println("Category '" + name + "' added.");
         } else if (choice.equals("2")) {
             System.out.println("\n--- Your Categories ---");
@@ -229,6 +433,30 @@ public class FinanceTracker {
             for (Category cat : user.categories) {
                 System.out.println("- " + cat.name);
             }
+        } else if (choice.equals("3")) {
+            if (user.categories.isEmpty()) {
+                System.out.println("Error: You must add a category first.");
+                return;
+            }
+            System.out.print("Enter text to look for in descriptions (e.g., Amazon): ");
+            String pattern = scanner.nextLine().trim();
+            if (pattern.isEmpty()) {
+                System.out.println("Error: The text cannot be empty.");
+                return;
+            }
+            System.out.println("Select Category:");
+            Category category = selectFromList(user.categories);
+            user.addRule(pattern, category);
+            System.out.println("Descriptions containing '" + pattern + "' will go to " + category.name + ".");
+        } else if (choice.equals("4")) {
+            System.out.println("\n--- Your Rules ---");
+            if (user.rules.size() == 0) {
+                System.out.println("No rules found.");
+                return;
+            }
+            for (CategoryRules.Rule rule : user.rules.rules()) {
+                System.out.println("- '" + rule.pattern + "' -> " + user.categories.get(rule.categoryId).name);
+            }
         }
     }
 
@@ -248,9 +476,9 @@ public class FinanceTracker {
             Category selectedCategory = selectFromList(user.categories);
             
             System.out.print("Enter monthly budget limit for " + selectedCategory.name + ": ");
-            double limit = Double.parseDouble(scanner.nextLine());
+            long limitCents = Money.parse(scanner.nextLine());
             
-            user.setBudget(selectedCategory, limit);
+            user.setBudget(selectedCategory, limitCents);
             System.out.println("Budget set successfully.");
 
         } else if (choice.equals("2")) {
@@ -259,9 +487,8 @@ public class FinanceTracker {
                 System.out.println("No budgets set.");
                 return;
             }
-            // Update spent amounts before viewing
-            user.updateAllBudgetSpentAmounts();
-            for (Budget b : user.budgets) {
+            // Spent amounts as of now, without touching the shared budgets
+            for (Budget b : user.snapshot().budgets(YearMonth.now())) {
                 System.out.println(b);
             }
         }
@@ -271,6 +498,9 @@ public class FinanceTracker {
         System.out.println("\n--- Run Reports ---");
         System.out.println("1. Net Worth Report");
         System.out.println("2. Monthly Spending by Category");
+        System.out.println("3. 12-Month Spending Trend for a Category");
+        System.out.println("4. Spending and Account Activity for a Date Range");
+        System.out.println("5. Net Worth History");
         System.out.print("Choose an option: ");
         String choice = scanner.nextLine();
         
@@ -282,6 +512,18 @@ public class FinanceTracker {
         } else if (choice.equals("2")) {
             String report = rg.generateSpendingReport(user);
             System.out.println(report);
+        } else if (choice.equals("3")) {
+            System.out.println("Select Category:");
+            Category category = selectFromList(user.categories);
+            String report = rg.generateCategoryTrendReport(user, category);
+            System.out.println(report);
+        } else if (choice.equals("4")) {
+            int[] range = readDateRange();
+            if (range != null) {
+                System.out.println(rg.generateDateRangeReport(user, range[0], range[1]));
+            }
+        } else if (choice.equals("5")) {
+            System.out.println(rg.generateNetWorthHistoryReport(user));
         }
     }
 
@@ -310,285 +552,5906 @@ public class FinanceTracker {
     // ====================================================================
     //
     // NESTED STATIC MODEL CLASSES
-    // (All implement Serializable for persistence)
+    // (Serializable so files from older versions can still be read)
     //
     // ====================================================================
 
     /**
      * Represents the root user object.
-     * This is the object that gets serialized to a file.
+     * This is the object that gets saved to a file.
+     *
+     * A user is safe to share between sessions, and takes no lock. Every
+     * change goes through its ChangeSequencer, which applies changes one
+     * at a time in ticket order: the ticket fixes where the change goes in
+     * the journal and the numbers of the rows it adds. A save is a change
+     * too, so it sees rows, indexes and balances agree. Queries of the
+     * derived indexes read optimistically and never hold writers up.
+     * Balances are updated atomically, and the account, category and
+     * budget lists are copy-on-write, so reading those needs nothing at all.
      */
     static class User implements Serializable {
         private static final long serialVersionUID = 1L;
+        // The field layout of files written before transactions moved to a TransactionStore
+        private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("username", String.class),
+            new ObjectStreamField("passwordHash", String.class),
+            new ObjectStreamField("accounts", List.class),
+            new ObjectStreamField("transactions", List.class),
+            new ObjectStreamField("categories", List.class),
+            new ObjectStreamField("budgets", List.class),
+            new ObjectStreamField("snapshotGeneration", long.class)
+        };
+
         String username;
-        String passwordHash;
+        String passwordHash; // As PasswordHasher.encode writes it
         List<Account> accounts;
-        List<Transaction> transactions;
-        List<Category> categories;
+        volatile TransactionStore transactions; // Rows refer to categories and accounts by id
+        List<Category> categories; // Indexed by id, as are accounts and budgets
         List<Budget> budgets;
+        CategoryRules rules;
+        long snapshotGeneration; // Bumped on every full snapshot; pairs the journal with its snapshot
+        transient ChangeSequencer changes; // Orders every change to everything below
+        transient ChangeJournal journal; // Changes made since the last save
+        transient boolean snapshotDue; // A write failed, or a change has no journal record, so the next save rewrites everything
+        transient SpendingTotals spending; // Derived from transactions; kept current by addTransaction
+        transient DateIndex byDate; // Likewise
+        transient DayRangeTotals spendingByDay; // Likewise, per category
+        transient DayRangeTotals flowByDay; // Likewise, per account
+        transient DescriptionIndex byDescription; // Likewise
+        transient NetWorthHistory netWorthHistory; // Likewise
+        transient int[] budgetIdByCategory; // -1 where a category has no budget
+        transient Map<String, Category> categoriesByName; // First category with each name
+        transient Map<String, Account> accountsByName; // Likewise
+        transient volatile long assetCents; // Sum of asset balances; kept current by adjustBalance
+        transient volatile long liabilityCents; // Likewise, for liabilities
 
         public User(String username, String passwordHash) {
             this.username = username;
             this.passwordHash = passwordHash;
-            this.accounts = new ArrayList<>();
-            this.transactions = new ArrayList<>();
-            this.categories = new ArrayList<>();
-            this.budgets = new ArrayList<>();
+            this.changes = new ChangeSequencer();
+            this.journal = new ChangeJournal();
+            this.accounts = new CopyOnWriteArrayList<>();
+            this.transactions = new ColumnarTransactionStore();
+            this.categories = new CopyOnWriteArrayList<>();
+            this.budgets = new CopyOnWriteArrayList<>();
+            this.rules = new CategoryRules();
+            this.spending = new SpendingTotals();
+            this.byDate = new DateIndex();
+            this.spendingByDay = new DayRangeTotals();
+            this.flowByDay = new DayRangeTotals();
+            this.byDescription = new DescriptionIndex();
+            this.netWorthHistory = new NetWorthHistory();
+            rebuildLookups();
+        }
+
+        /**
+         * Reads a user saved with Java serialization, when transactions were a List.
+         */
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            changes = new ChangeSequencer();
+            journal = new ChangeJournal();
+            username = (String) fields.get("username", null);
+            passwordHash = (String) fields.get("passwordHash", null);
+            accounts = new CopyOnWriteArrayList<>((List<Account>) fields.get("accounts", null));
+            categories = new CopyOnWriteArrayList<>((List<Category>) fields.get("categories", null));
+            budgets = new CopyOnWriteArrayList<>((List<Budget>) fields.get("budgets", null));
+            snapshotGeneration = fields.get("snapshotGeneration", 0L);
+            rules = new CategoryRules(); // Rules came later than this format
+            rebuildLookups();
+            transactions = new ColumnarTransactionStore();
+            for (Transaction tx : (List<Transaction>) fields.get("transactions", null)) {
+                // Balances already include these transactions
+                appendRow(tx);
+            }
+            rebuildDerivedState();
         }
 
         public boolean checkPassword(String password, PersistenceManager pm) {
-            return this.passwordHash.equals(pm.hashPassword(password));
+            return pm.authenticate(username, password);
         }
 
-        public void addTransaction(Transaction tx) {
-            this.transactions.add(tx);
-            // Update the balance of the associated account
-            tx.account.balance += tx.amount;
+        /**
+         * Returns the journal of unsaved changes. Use it within a change, or before the user is shared.
+         */
+        ChangeJournal journal() {
+            return journal;
+        }
+
+        /**
+         * Applies an edit as this user's next change and returns its result.
+         * @see ChangeSequencer#apply
+         */
+        <T> T change(Supplier<T> edit) {
+            return changes.apply(edit);
         }
 
-        public void setBudget(Category category, double limit) {
-            // Remove old budget if it exists
-            budgets.removeIf(b -> b.category.equals(category));
-            // Add new budget
-            budgets.add(new Budget(category, limit));
+        void change(Runnable edit) {
+            changes.apply(() -> {
+                edit.run();
+                return null;
+            });
         }
-        
+
         /**
-         * Recalculates the 'spentAmount' for all budgets based on transactions.
+         * Runs a query of the derived state without holding up writers.
+         * @see ChangeSequencer#read
          */
-        public void updateAllBudgetSpentAmounts() {
-            // This is a simple implementation. A real one would filter by month.
-            for (Budget budget : budgets) {
-                double spent = 0;
-                for (Transaction tx : transactions) {
-                    // Check if transaction is in the same category and is an expense
-                    if (tx.category.equals(budget.category) && tx.amount < 0) {
-                        // We use Math.abs because amount is negative
-                        spent += Math.abs(tx.amount);
-                    }
-                }
-                budget.spentAmount = spent;
+        <T> T read(Supplier<T> query) {
+            return changes.read(query);
+        }
+
+        /**
+         * Gives accounts, categories and budgets their ids from their list
+         * positions and rebuilds the lookup tables and balance totals, e.g.
+         * after the lists were filled without going through addAccount and friends.
+         * Call before the user is shared, or within a change.
+         */
+        void rebuildLookups() {
+            accountsByName = new ConcurrentHashMap<>();
+            assetCents = 0;
+            liabilityCents = 0;
+            for (int id = 0; id < accounts.size(); id++) {
+                Account account = accounts.get(id);
+                account.id = id;
+                accountsByName.putIfAbsent(account.accountName, account);
+                countBalance(account, account.balanceCents);
+            }
+            categoriesByName = new ConcurrentHashMap<>();
+            for (int id = 0; id < categories.size(); id++) {
+                categories.get(id).id = id;
+                categoriesByName.putIfAbsent(categories.get(id).name, categories.get(id));
+            }
+            budgetIdByCategory = new int[Math.max(8, categories.size())];
+            Arrays.fill(budgetIdByCategory, -1);
+            for (int id = 0; id < budgets.size(); id++) {
+                budgets.get(id).id = id;
+                budgetIdByCategory[budgets.get(id).category.id] = id;
             }
         }
-    }
 
-    /**
-     * Represents a financial account (e.g., Checking, Credit Card).
-     */
-    static class Account implements Serializable {
-        private static final long serialVersionUID = 1L;
-        String accountName;
-        double balance;
-        boolean isAsset; // True = Asset (Checking), False = Liability (Credit Card)
+        public void addAccount(Account account) {
+            change(() -> {
+                account.id = accounts.size();
+                this.accounts.add(account);
+                accountsByName.putIfAbsent(account.accountName, account);
+                countBalance(account, account.balanceCents);
+                journal.accountAdded(account);
+            });
+        }
 
-        public Account(String accountName, double balance, boolean isAsset) {
-            this.accountName = accountName;
-            this.balance = balance;
-            this.isAsset = isAsset;
+        /**
+         * Changes an account's balance, keeping the asset and liability totals
+         * current. Call within a change.
+         */
+        void adjustBalance(Account account, long deltaCents) {
+            account.addToBalance(deltaCents);
+            countBalance(account, deltaCents);
         }
 
-        @Override
-        public String toString() {
-            return String.format("%s (%s): $%.2f", 
-                accountName, isAsset ? "Asset" : "Liability", balance);
+        private void countBalance(Account account, long cents) {
+            if (account.isAsset) {
+                assetCents += cents;
+            } else {
+                liabilityCents += cents;
+            }
         }
-    }
 
-    /**
-     * Represents a single transaction (income or expense).
-     */
-    static class Transaction implements Serializable {
-        private static final long serialVersionUID = 1L;
-        double amount;
-        String description;
-        Date date;
-        Category category;
-        Account account;
+        /**
+         * Assets minus liabilities, without visiting the accounts. Read
+         * together, so the two totals are from the same moment.
+         */
+        public long netWorthCents() {
+            return read(() -> assetCents - liabilityCents);
+        }
 
-        public Transaction(double amount, String description, Date date, Category category, Account account) {
-            this.amount = amount;
-            this.description = description;
-            this.date = date;
-            this.category = category;
-            this.account = account;
+        /**
+         * Net worth at the end of each of the given number of months ending
+         * with lastMonth, oldest first. Opening balances are taken to predate
+         * every transaction.
+         */
+        public long[] netWorthCentsByMonth(YearMonth lastMonth, int months) {
+            int last = SpendingTotals.monthIndex(lastMonth);
+            return read(() -> {
+                long opening = assetCents - liabilityCents - netWorthHistory.totalChange();
+                long[] result = new long[months];
+                for (int i = 0; i < months; i++) {
+                    result[i] = opening + netWorthHistory.changeThrough(last - months + 1 + i);
+                }
+                return result;
+            });
         }
 
-        @Override
-        public String toString() {
-            String type = amount >= 0 ? "INCOME" : "EXPENSE";
-            String dateStr = new SimpleDateFormat("yyyy-MM-dd").format(date);
-            return String.format("[%s] %s: $%.2f - %s (Cat: %s, Acct: %s)",
-                dateStr, type, Math.abs(amount), description, category.name, account.accountName);
+        public void addCategory(Category category) {
+            change(() -> {
+                category.id = categories.size();
+                this.categories.add(category);
+                categoriesByName.putIfAbsent(category.name, category);
+                journal.categoryAdded(category);
+            });
         }
-    }
 
-    /**
-     * Represents a simple, flat spending category.
-     */
-    static class Category implements Serializable {
-        private static final long serialVersionUID = 1L;
-        String name;
+        /**
+         * @return The first account with this name, or null
+         */
+        public Account accountNamed(String name) {
+            return accountsByName.get(name);
+        }
 
-        public Category(String name) {
-            this.name = name;
+        /**
+         * @return The first category with this name, or null
+         */
+        public Category categoryNamed(String name) {
+            return categoriesByName.get(name);
         }
 
-        @Override
-        public String toString() {
-            return name;
+        /**
+         * Adds a rule that sends descriptions containing pattern to category.
+         */
+        public void addRule(String pattern, Category category) {
+            change(() -> {
+                rules.add(pattern, category.id);
+                journal.ruleAdded(pattern, category.id);
+            });
         }
-        
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            Category category = (Category) obj;
-            return name.equals(category.name);
+
+        /**
+         * Returns the category the rules give a description, or null if no rule matches.
+         */
+        public Category categorize(String description) {
+            int categoryId = ruleMatcher().categoryId(description);
+            return categoryId < 0 ? null : categories.get(categoryId);
         }
 
-        @Override
-        public int hashCode() {
-            return name != null ? name.hashCode() : 0;
+        /**
+         * Returns the compiled rules, compiling them if they changed.
+         */
+        CategoryRules.Matcher ruleMatcher() {
+            CategoryRules.Matcher matcher = read(rules::compiled);
+            // Compiling keeps the matcher for next time, so it is a change
+            return matcher != null ? matcher : change(rules::matcher);
         }
-    }
 
-    /**
-     * Represents a monthly budget for a specific category.
-     */
-    static class Budget implements Serializable {
-        private static final long serialVersionUID = 1L;
-        Category category;
-        double limitAmount;
-        double spentAmount; // This would be calculated
+        public void addTransaction(Transaction tx) {
+            addTransaction(tx.amountCents, UserCodec.toEpochDay(tx.date), tx.description, tx.category, tx.account);
+        }
 
-        public Budget(Category category, double limitAmount) {
-            this.category = category;
-            this.limitAmount = limitAmount;
-            this.spentAmount = 0; // Calculated on demand
+        /**
+         * Adds a transaction without building a Transaction first, for bulk imports.
+         */
+        public void addTransaction(long amountCents, int epochDay, String description, Category category, Account account) {
+            change(() -> {
+                addTransactionRow(amountCents, epochDay, description, category, account);
+                // Update the balance of the associated account
+                adjustBalance(account, amountCents);
+            });
         }
 
-        @Override
-        public String toString() {
-            double remaining = limitAmount - spentAmount;
-            return String.format("Budget for '%s': $%.2f spent of $%.2f ($%.2f remaining)",
-                category.name, spentAmount, limitAmount, remaining);
+        /**
+         * Adds a transaction but leaves the account balance to the caller,
+         * so bulk imports can update each balance once at the end. Call
+         * within a change.
+         */
+        void addTransactionRow(long amountCents, int epochDay, String description, Category category, Account account) {
+            int categoryId = category.id;
+            int accountId = account.id;
+            int row = transactions.add(amountCents, epochDay, transactions.internDescription(description),
+                categoryId, accountId);
+            spending.record(categoryId, epochDay, amountCents);
+            byDate.add(row, epochDay);
+            if (amountCents < 0) {
+                spendingByDay.record(categoryId, epochDay, -amountCents);
+            }
+            flowByDay.record(accountId, epochDay, amountCents);
+            byDescription.add(transactions, row);
+            netWorthHistory.record(epochDay, account.isAsset ? amountCents : -amountCents);
+            journal.transactionAdded(transactions, row);
         }
-    }
 
-    // ====================================================================
-    //
-    // NESTED STATIC SERVICE CLASSES
-    //
-    // ====================================================================
+        private int appendRow(Transaction tx) {
+            return transactions.add(tx.amountCents, UserCodec.toEpochDay(tx.date),
+                transactions.internDescription(tx.description),
+                tx.category.id, tx.account.id);
+        }
 
-    /**
-     * Handles saving and loading user data via serialization.
-     * Also handles password security.
-     */
-    static class PersistenceManager {
+        /**
+         * Materializes one stored row as a Transaction, e.g. for display.
+         */
+        public Transaction transactionAt(int row) {
+            return read(() -> {
+                TransactionStore store = transactions;
+                return new Transaction(store.amountCents(row),
+                    store.description(row),
+                    UserCodec.fromEpochDay(store.epochDay(row)),
+                    categories.get(store.categoryId(row)),
+                    accounts.get(store.accountId(row)));
+            });
+        }
 
-        private static final String SAVE_DIR = "."; // Save in current directory
-        private static final String FILE_EXT = ".ser";
+        /**
+         * Sets a category's budget, updating the existing one in place.
+         */
+        public void setBudget(Category category, long limitCents) {
+            change(() -> {
+                Budget budget = budgetFor(category);
+                if (budget != null) {
+                    budget.limitCents = limitCents;
+                } else {
+                    budget = new Budget(category, limitCents);
+                    budget.id = budgets.size();
+                    budgets.add(budget);
+                    if (category.id >= budgetIdByCategory.length) {
+                        int capacity = Math.max(category.id + 1, budgetIdByCategory.length * 2);
+                        int oldLength = budgetIdByCategory.length;
+                        int[] grown = Arrays.copyOf(budgetIdByCategory, capacity);
+                        Arrays.fill(grown, oldLength, capacity, -1);
+                        budgetIdByCategory = grown;
+                    }
+                    budgetIdByCategory[category.id] = budget.id;
+                }
+                journal.budgetSet(category.id, limitCents);
+            });
+        }
 
-        private String getFilePath(String username) {
-            return SAVE_DIR + File.separator + username + FILE_EXT;
+        /**
+         * @return The category's budget, or null if it has none
+         */
+        public Budget budgetFor(Category category) {
+            int id = category.id;
+            return read(() -> {
+                int[] budgetIds = budgetIdByCategory;
+                return id < 0 || id >= budgetIds.length || budgetIds[id] < 0 ? null : budgets.get(budgetIds[id]);
+            });
         }
         
-        public boolean userExists(String username) {
-            return new File(getFilePath(username)).exists();
+        /**
+         * Refreshes the 'spentCents' for all budgets to the current month.
+         */
+        public void updateAllBudgetSpentAmounts() {
+            updateAllBudgetSpentAmounts(YearMonth.now());
         }
 
         /**
-         * Saves the user object to a file.
+         * Refreshes the 'spentCents' for all budgets to the given month,
+         * from the running monthly totals.
          */
-        public void saveUser(User user) {
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getFilePath(user.username)))) {
-                oos.writeObject(user);
-            } catch (IOException e) {
-                System.out.println("Error saving user data: " + e.getMessage());
-            }
+        public void updateAllBudgetSpentAmounts(YearMonth period) {
+            int month = SpendingTotals.monthIndex(period);
+            // The budgets are shared, so filling them in is a change
+            change(() -> {
+                for (Budget budget : budgets) {
+                    budget.spentCents = spending.spentCents(budget.category.id, month);
+                    budget.period = period;
+                }
+            });
         }
 
         /**
-         * Loads a user object from a file.
+         * Returns a category's spending for the twelve months ending with lastMonth, oldest first.
          */
-        public User loadUser(String username) {
-            if (!userExists(username)) {
-                return null;
+        public long[] lastTwelveMonthsSpentCents(Category category, YearMonth lastMonth) {
+            int last = SpendingTotals.monthIndex(lastMonth);
+            return read(() -> spending.spentCentsByMonth(category.id, last, 12));
+        }
+
+        /**
+         * Rough heap footprint of everything derived from the transactions.
+         */
+        long derivedHeapBytes() {
+            return read(() -> spending.heapBytes() + byDate.heapBytes() + spendingByDay.heapBytes()
+                + flowByDay.heapBytes() + byDescription.heapBytes() + netWorthHistory.heapBytes());
+        }
+
+        /**
+         * Recomputes the spending totals and date index from scratch, e.g.
+         * after loading transactions without going through addTransaction.
+         * This reads every row, including every page of a mapped store; the
+         * indexes it builds stay on the heap, while the pages are left for
+         * the OS to drop again. Call before the user is shared, or within a change.
+         */
+        void rebuildDerivedState() {
+            spending = SpendingTotals.fromStore(transactions);
+            byDate = DateIndex.fromStore(transactions);
+            spendingByDay = DayRangeTotals.spendingByCategory(transactions);
+            flowByDay = DayRangeTotals.flowByAccount(transactions);
+            byDescription = DescriptionIndex.fromStore(transactions);
+            netWorthHistory = NetWorthHistory.fromStore(transactions, accounts);
+        }
+
+        /**
+         * Visits the rows dated from fromDay to toDay inclusive, oldest first.
+         * The rows are collected first, so the action never holds up writers.
+         */
+        public void forEachRowBetween(int fromDay, int toDay, IntConsumer action) {
+            int[] rows = read(() -> byDate.hasPending() ? null : byDate.rowsBetween(fromDay, toDay));
+            if (rows == null) {
+                // Backdated rows are waiting to be merged in, which changes the index
+                rows = change(() -> {
+                    byDate.mergePending();
+                    return byDate.rowsBetween(fromDay, toDay);
+                });
             }
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(getFilePath(username)))) {
-                return (User) ois.readObject();
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Error loading user data: " + e.getMessage());
-                return null;
+            for (int row : rows) {
+                action.accept(row);
             }
         }
 
         /**
-         * Hashes a password using SHA-256 for secure storage.
+         * Finds transactions whose description contains the query, best matches first.
          */
-        public String hashPassword(String password) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                byte[] hash = md.digest(password.getBytes(StandardCharsets.UTF_8));
-                // Convert byte array to hex string
-                StringBuilder hexString = new StringBuilder();
-                for (byte b : hash) {
-                    String hex = Integer.toHexString(0xff & b);
-                    if(hex.length() == 1) hexString.append('0');
-                    hexString.append(hex);
-                }
-                return hexString.toString();
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("SHA-256 algorithm not found", e);
-            }
+        public DescriptionIndex.Matches searchDescriptions(String query, int limit) {
+            return read(() -> byDescription.search(query, limit, transactions));
         }
-    }
 
-    /**
-     * Generates formatted text reports for the console.
-     */
-    static class ReportGenerator {
+        /**
+         * Total spent on a category between two dates, inclusive.
+         */
+        public long spentCentsBetween(Category category, int fromDay, int toDay) {
+            return read(() -> spendingByDay.sum(category.id, fromDay, toDay));
+        }
 
-        public String generateNetWorthReport(User user) {
-            double totalAssets = 0;
-            double totalLiabilities = 0;
+        /**
+         * Net change to an account's balance between two dates, inclusive.
+         */
+        public long flowCentsBetween(Account account, int fromDay, int toDay) {
+            return read(() -> flowByDay.sum(account.id, fromDay, toDay));
+        }
 
-            for (Account acc : user.accounts) {
-                if (acc.isAsset) {
-                    totalAssets += acc.balance;
-                } else {
-                    // Liabilities are stored as positive balances, but represent debt
-                    totalLiabilities += acc.balance; 
+        /**
+         * Checks the running spending totals against a full recomputation
+         * and falls back to the recomputed ones if they differ.
+         * @return true if the running totals were correct
+         */
+        public boolean verifySpendingTotals() {
+            return change(() -> {
+                SpendingTotals recomputed = SpendingTotals.fromStore(transactions);
+                if (recomputed.matches(spending, categories.size())) {
+                    return true;
                 }
-            }
-            double netWorth = totalAssets - totalLiabilities;
+                spending = recomputed;
+                return false;
+            });
+        }
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("\n--- Net Worth Report ---\n");
-            sb.append(String.format("Total Assets:      $%.2f\n", totalAssets));
-            sb.append(String.format("Total Liabilities: $%.2f\n", totalLiabilities));
-            sb.append("------------------------\n");
-            sb.append(String.format("Net Worth:         $%.2f\n", netWorth));
-            return sb.toString();
+        /**
+         * Checks the running asset and liability totals against the account
+         * balances and falls back to the recomputed ones if they differ.
+         * @return true if the running totals were correct
+         */
+        public boolean verifyBalanceTotals() {
+            return change(() -> {
+                long assets = 0;
+                long liabilities = 0;
+                for (Account account : accounts) {
+                    if (account.isAsset) {
+                        assets += account.balanceCents;
+                    } else {
+                        liabilities += account.balanceCents;
+                    }
+                }
+                if (assets == assetCents && liabilities == liabilityCents) {
+                    return true;
+                }
+                assetCents = assets;
+                liabilityCents = liabilities;
+                return false;
+            });
         }
 
-        public String generateSpendingReport(User user) {
-            // Update spent amounts before generating the report
-            user.updateAllBudgetSpentAmounts();
+        /**
+         * Takes a consistent point-in-time view for reports. Only the
+         * balances and budget limits are copied, in one read.
+         */
+        public UserSnapshot snapshot() {
+            return read(() -> new UserSnapshot(this));
+        }
+    }
+
+    /**
+     * A user as of one moment, for reports. Writers carry on past it.
+     *
+     * Transaction rows are append-only, so the snapshot is just a row
+     * count plus copies of the few things that change in place (balances,
+     * budget limits). Queries read the user's live indexes, noting the row
+     * count they saw, and subtract the rows added since the snapshot, which
+     * it keeps in small indexes of its own. Those are caught up straight
+     * from the store, since rows below a seen count never change, so no
+     * query takes part in the user's changes or holds up a writer.
+     *
+     * A snapshot serves one report at a time; its methods lock only the
+     * snapshot itself.
+     */
+    static class UserSnapshot {
+        final List<Account> accounts;
+        final List<Category> categories;
+        final int rows;
+        final long assetCents;
+        final long liabilityCents;
+        private final User user;
+        private final long[] balanceCents; // By account id
+        private final List<Budget> budgets; // Copies, limits as of the snapshot
+        // The rows added since, i.e. rows and on
+        private final SpendingTotals laterSpending = new SpendingTotals();
+        private final DayRangeTotals laterSpendingByDay = new DayRangeTotals();
+        private final DayRangeTotals laterFlowByDay = new DayRangeTotals();
+        private final NetWorthHistory laterNetWorth = new NetWorthHistory();
+        private int caughtUpTo;
+
+        /** Call from a read or change of the user. */
+        UserSnapshot(User user) {
+            this.user = user;
+            this.accounts = List.copyOf(user.accounts);
+            this.categories = List.copyOf(user.categories);
+            this.rows = user.transactions.size();
+            this.assetCents = user.assetCents;
+            this.liabilityCents = user.liabilityCents;
+            this.balanceCents = new long[accounts.size()];
+            for (Account account : accounts) {
+                balanceCents[account.id] = account.balanceCents;
+            }
+            List<Budget> copies = new ArrayList<>(user.budgets.size());
+            for (Budget budget : user.budgets) {
+                Budget copy = new Budget(budget.category, budget.limitCents);
+                copy.id = budget.id;
+                copies.add(copy);
+            }
+            this.budgets = copies;
+            this.caughtUpTo = rows;
+        }
+
+        public long netWorthCents() {
+            return assetCents - liabilityCents;
+        }
+
+        public long balanceCents(Account account) {
+            return balanceCents[account.id];
+        }
+
+        /**
+         * Runs a query of the user's live indexes as a read, then catches up
+         * to the rows it saw, so the later indexes cover exactly the rows the
+         * answer has on top of the snapshot's.
+         */
+        private <T> T live(Supplier<T> query) {
+            int[] seen = new int[1];
+            T result = user.read(() -> {
+                seen[0] = user.transactions.size();
+                return query.get();
+            });
+            catchUp(seen[0]);
+            return result;
+        }
+
+        /**
+         * Records the rows added since the last call, up to the given count.
+         * Reads only rows below a count already seen, which never change.
+         */
+        private void catchUp(int upTo) {
+            TransactionStore store = user.transactions;
+            for (int row = caughtUpTo; row < upTo; row++) {
+                long amountCents = store.amountCents(row);
+                int epochDay = store.epochDay(row);
+                laterSpending.record(store.categoryId(row), epochDay, amountCents);
+                if (amountCents < 0) {
+                    laterSpendingByDay.record(store.categoryId(row), epochDay, -amountCents);
+                }
+                laterFlowByDay.record(store.accountId(row), epochDay, amountCents);
+                laterNetWorth.record(epochDay, user.accounts.get(store.accountId(row)).isAsset ? amountCents : -amountCents);
+            }
+            caughtUpTo = Math.max(caughtUpTo, upTo);
+        }
+
+        /**
+         * The budgets with what was spent against each in the given month.
+         */
+        public synchronized List<Budget> budgets(YearMonth period) {
+            int month = SpendingTotals.monthIndex(period);
+            long[] spent = live(() -> {
+                long[] byBudget = new long[budgets.size()];
+                for (int i = 0; i < byBudget.length; i++) {
+                    byBudget[i] = user.spending.spentCents(budgets.get(i).category.id, month);
+                }
+                return byBudget;
+            });
+            for (int i = 0; i < spent.length; i++) {
+                Budget budget = budgets.get(i);
+                budget.spentCents = spent[i] - laterSpending.spentCents(budget.category.id, month);
+                budget.period = period;
+            }
+            return budgets;
+        }
+
+        /**
+         * @see User#budgetFor
+         */
+        public Budget budgetFor(Category category) {
+            for (Budget budget : budgets) {
+                if (budget.category == category) {
+                    return budget;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @see User#netWorthCentsByMonth
+         */
+        public synchronized long[] netWorthCentsByMonth(YearMonth lastMonth, int months) {
+            int last = SpendingTotals.monthIndex(lastMonth);
+            // The user's total change first, then its change through each month
+            long[] live = live(() -> {
+                NetWorthHistory history = user.netWorthHistory;
+                long[] changes = new long[months + 1];
+                changes[0] = history.totalChange();
+                for (int i = 0; i < months; i++) {
+                    changes[i + 1] = history.changeThrough(last - months + 1 + i);
+                }
+                return changes;
+            });
+            long opening = netWorthCents() - (live[0] - laterNetWorth.totalChange());
+            long[] result = new long[months];
+            for (int i = 0; i < months; i++) {
+                result[i] = opening + live[i + 1] - laterNetWorth.changeThrough(last - months + 1 + i);
+            }
+            return result;
+        }
+
+        /**
+         * @see User#lastTwelveMonthsSpentCents
+         */
+        public synchronized long[] lastTwelveMonthsSpentCents(Category category, YearMonth lastMonth) {
+            int last = SpendingTotals.monthIndex(lastMonth);
+            long[] result = live(() -> user.spending.spentCentsByMonth(category.id, last, 12));
+            long[] later = laterSpending.spentCentsByMonth(category.id, last, 12);
+            for (int i = 0; i < result.length; i++) {
+                result[i] -= later[i];
+            }
+            return result;
+        }
+
+        /**
+         * @see User#spentCentsBetween
+         */
+        public synchronized long spentCentsBetween(Category category, int fromDay, int toDay) {
+            return live(() -> user.spendingByDay.sum(category.id, fromDay, toDay))
+                - laterSpendingByDay.sum(category.id, fromDay, toDay);
+        }
+
+        /**
+         * @see User#flowCentsBetween
+         */
+        public synchronized long flowCentsBetween(Account account, int fromDay, int toDay) {
+            return live(() -> user.flowByDay.sum(account.id, fromDay, toDay))
+                - laterFlowByDay.sum(account.id, fromDay, toDay);
+        }
+    }
+
+    /**
+     * Puts the changes to one user in a single order without a lock.
+     *
+     * Each change takes a ticket from a counter and leaves itself in the
+     * ticket's slot. Whichever waiting thread finds no one applying takes
+     * over and applies every ready change in ticket order, then wakes
+     * their threads. So changes never interleave, their journal records
+     * and row numbers follow ticket order, and a writer that gets in first
+     * does everyone's work rather than making them queue on a monitor.
+     *
+     * Reads don't take a ticket. The version is odd while a change is
+     * being applied, so a read runs its query and keeps the answer if the
+     * version didn't move meanwhile, queueing as a change only after a few
+     * misses. Queries must therefore have no side effects, and must give
+     * up (end or throw) if they see a half-made change.
+     */
+    static class ChangeSequencer {
+        private static final int SLOTS = 1024; // Changes that can wait at once; more spin until there is room
+        private static final int OPTIMISTIC_ATTEMPTS = 4;
+        private static final int SPINS = 16; // Yields before a waiting change parks
+
+        private final AtomicLong nextTicket = new AtomicLong();
+        private final AtomicReferenceArray<Pending<?>> slots = new AtomicReferenceArray<>(SLOTS);
+        private final AtomicReference<Thread> applier = new AtomicReference<>();
+        private final AtomicLong version = new AtomicLong(); // Odd while a change is being applied
+        private volatile long applied; // Tickets applied so far; written only by the applier
+
+        private static final class Pending<T> {
+            final Supplier<T> edit;
+            final Thread owner;
+            T result;
+            Throwable failure;
+            volatile boolean done; // Publishes result and failure
+
+            Pending(Supplier<T> edit, Thread owner) {
+                this.edit = edit;
+                this.owner = owner;
+            }
+
+            void run() {
+                try {
+                    result = edit.get();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+        }
+
+        /**
+         * Applies the edit after every change with an earlier ticket and
+         * returns its result, rethrowing what it threw. A change may make
+         * further changes; they apply straight away, as part of it.
+         */
+        <T> T apply(Supplier<T> edit) {
+            Thread current = Thread.currentThread();
+            if (applier.get() == current) {
+                return edit.get();
+            }
+            if (applier.compareAndSet(null, current)) {
+                // With no change waiting, take the next ticket and skip the queue
+                long next = applied;
+                boolean first = nextTicket.compareAndSet(next, next + 1);
+                try {
+                    if (first) {
+                        version.incrementAndGet();
+                        try {
+                            return edit.get();
+                        } finally {
+                            version.incrementAndGet();
+                            applied = next + 1;
+                        }
+                    }
+                } finally {
+                    applier.set(null);
+                    drainIfIdle(current); // Changes left while this one ran
+                }
+            }
+            long ticket = nextTicket.getAndIncrement();
+            while (ticket - applied >= SLOTS) {
+                drainIfIdle(current);
+                Thread.yield();
+            }
+            Pending<T> pending = new Pending<>(edit, current);
+            slots.set(slot(ticket), pending);
+            boolean interrupted = false;
+            for (int spins = 0; !pending.done; spins++) {
+                drainIfIdle(current);
+                if (pending.done) {
+                    break;
+                }
+                if (spins < SPINS) {
+                    // The applier is likely just behind; parking would cost more
+                    Thread.yield();
+                } else {
+                    LockSupport.park(this);
+                    interrupted |= Thread.interrupted();
+                }
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
+            if (pending.failure instanceof RuntimeException) {
+                throw (RuntimeException) pending.failure;
+            }
+            if (pending.failure instanceof Error) {
+                throw (Error) pending.failure;
+            }
+            return pending.result;
+        }
+
+        /**
+         * Runs a query that sees no change half made. Rethrows what the
+         * query threw only if no change got in the way.
+         */
+        <T> T read(Supplier<T> query) {
+            if (applier.get() == Thread.currentThread()) {
+                return query.get();
+            }
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                long before = version.get();
+                if ((before & 1) == 0) {
+                    try {
+                        T result = query.get();
+                        if (unchangedSince(before)) {
+                            return result;
+                        }
+                    } catch (RuntimeException e) {
+                        if (unchangedSince(before)) {
+                            throw e;
+                        }
+                    }
+                }
+                Thread.yield();
+            }
+            // Writers kept getting in the way; wait in line with them instead
+            return apply(query);
+        }
+
+        private boolean unchangedSince(long before) {
+            VarHandle.acquireFence(); // Keeps the query's reads before the check
+            return version.get() == before;
+        }
+
+        /**
+         * Applies the ready changes if no other thread is, checking again
+         * after letting go so a change left just then isn't stranded.
+         */
+        private void drainIfIdle(Thread current) {
+            while (slots.get(slot(applied)) != null && applier.compareAndSet(null, current)) {
+                try {
+                    drain();
+                } finally {
+                    applier.set(null);
+                }
+            }
+        }
+
+        private void drain() {
+            Pending<?> pending;
+            while ((pending = slots.get(slot(applied))) != null) {
+                slots.set(slot(applied), null);
+                version.incrementAndGet();
+                try {
+                    pending.run();
+                } finally {
+                    version.incrementAndGet();
+                }
+                applied++; // Only this thread writes it
+                pending.done = true;
+                LockSupport.unpark(pending.owner);
+            }
+        }
+
+        private static int slot(long ticket) {
+            return (int) (ticket & (SLOTS - 1));
+        }
+    }
+
+    /**
+     * Represents a financial account (e.g., Checking, Credit Card).
+     */
+    static class Account implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // The field layout of files written when balances were doubles
+        private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("accountName", String.class),
+            new ObjectStreamField("balance", double.class),
+            new ObjectStreamField("isAsset", boolean.class)
+        };
+
+        private static final VarHandle BALANCE_CENTS;
+        static {
+            try {
+                BALANCE_CENTS = MethodHandles.lookup().findVarHandle(Account.class, "balanceCents", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        String accountName;
+        volatile long balanceCents; // Changed through addToBalance
+        boolean isAsset; // True = Asset (Checking), False = Liability (Credit Card)
+        transient int id = -1; // Position in the user's accounts, set when added
+
+        public Account(String accountName, long balanceCents, boolean isAsset) {
+            this.accountName = accountName;
+            this.balanceCents = balanceCents;
+            this.isAsset = isAsset;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            accountName = (String) fields.get("accountName", null);
+            balanceCents = Math.round(fields.get("balance", 0.0) * 100);
+            isAsset = fields.get("isAsset", false);
+        }
+
+        /**
+         * Adds to the balance atomically, so no update is lost to another writer.
+         */
+        void addToBalance(long deltaCents) {
+            BALANCE_CENTS.getAndAdd(this, deltaCents);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(48);
+            sb.append(accountName).append(" (").append(isAsset ? "Asset" : "Liability").append("): ");
+            return Money.append(sb, balanceCents).toString();
+        }
+    }
+
+    /**
+     * Represents a single transaction (income or expense).
+     */
+    static class Transaction implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // The field layout of files written when amounts were doubles
+        private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("amount", double.class),
+            new ObjectStreamField("description", String.class),
+            new ObjectStreamField("date", Date.class),
+            new ObjectStreamField("category", Category.class),
+            new ObjectStreamField("account", Account.class)
+        };
+
+        // Input dates must fall in this range; outside it they are typos that stretch the per-day indexes
+        static final LocalDate FIRST_DATE = LocalDate.of(1900, 1, 1);
+        static final LocalDate LAST_DATE = LocalDate.of(2199, 12, 31);
+
+        long amountCents;
+        String description;
+        Date date;
+        Category category;
+        Account account;
+
+        /**
+         * @throws IllegalArgumentException if the day is outside FIRST_DATE to LAST_DATE
+         */
+        static int checkEpochDay(int epochDay) {
+            if (epochDay < FIRST_DATE.toEpochDay() || epochDay > LAST_DATE.toEpochDay()) {
+                throw new IllegalArgumentException("Dates must be between " + FIRST_DATE + " and " + LAST_DATE + ".");
+            }
+            return epochDay;
+        }
+
+        public Transaction(long amountCents, String description, Date date, Category category, Account account) {
+            this.amountCents = amountCents;
+            this.description = description;
+            this.date = date;
+            this.category = category;
+            this.account = account;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            amountCents = Math.round(fields.get("amount", 0.0) * 100);
+            description = (String) fields.get("description", null);
+            date = (Date) fields.get("date", null);
+            category = (Category) fields.get("category", null);
+            account = (Account) fields.get("account", null);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(96);
+            sb.append('[').append(LocalDate.ofEpochDay(UserCodec.toEpochDay(date))).append("] ")
+                .append(amountCents >= 0 ? "INCOME: " : "EXPENSE: ");
+            Money.append(sb, Math.abs(amountCents));
+            return sb.append(" - ").append(description)
+                .append(" (Cat: ").append(category.name)
+                .append(", Acct: ").append(account.accountName).append(')').toString();
+        }
+    }
+
+    /**
+     * Stores a user's transactions. Rows are numbered in insertion order and
+     * refer to categories, accounts and descriptions by number.
+     *
+     * Rows never change once added, and the size is published after each
+     * row is written, so any thread may read the rows below a size it has
+     * seen without taking part in the user's changes. Descriptions are not
+     * covered; read those within a read or change of the user.
+     */
+    interface TransactionStore {
+        int size();
+
+        default boolean isEmpty() {
+            return size() == 0;
+        }
+
+        long amountCents(int row);
+
+        int epochDay(int row);
+
+        int categoryId(int row);
+
+        int accountId(int row);
+
+        int descriptionId(int row);
+
+        default String description(int row) {
+            return descriptionById(descriptionId(row));
+        }
+
+        /**
+         * Returns the id for a description, adding it to the dictionary if it is new.
+         */
+        int internDescription(String description);
+
+        String descriptionById(int descriptionId);
+
+        int descriptionCount();
+
+        /**
+         * Appends a row.
+         * @return The new row's number
+         */
+        int add(long amountCents, int epochDay, int descriptionId, int categoryId, int accountId);
+
+        void ensureCapacity(int rows);
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes();
+    }
+
+    /**
+     * Keeps each transaction field in its own primitive array, so scans over
+     * one or two fields walk contiguous memory. Descriptions are dictionary
+     * encoded, since the same ones recur constantly.
+     */
+    static class ColumnarTransactionStore implements TransactionStore {
+        private long[] amounts = new long[16];
+        private int[] epochDays = new int[16];
+        private int[] categoryIds = new int[16];
+        private int[] accountIds = new int[16];
+        private int[] descriptionIds = new int[16];
+        private volatile int size; // Written after the row, so rows below it are readable from any thread
+        private final DescriptionDictionary descriptions = new DescriptionDictionary();
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long amountCents(int row) {
+            return amounts[row];
+        }
+
+        @Override
+        public int epochDay(int row) {
+            return epochDays[row];
+        }
+
+        @Override
+        public int categoryId(int row) {
+            return categoryIds[row];
+        }
+
+        @Override
+        public int accountId(int row) {
+            return accountIds[row];
+        }
+
+        @Override
+        public int descriptionId(int row) {
+            return descriptionIds[row];
+        }
+
+        @Override
+        public int internDescription(String description) {
+            return descriptions.intern(description);
+        }
+
+        @Override
+        public String descriptionById(int descriptionId) {
+            return descriptions.get(descriptionId);
+        }
+
+        @Override
+        public int descriptionCount() {
+            return descriptions.size();
+        }
+
+        @Override
+        public int add(long amountCents, int epochDay, int descriptionId, int categoryId, int accountId) {
+            if (size == amounts.length) {
+                ensureCapacity(size * 2);
+            }
+            amounts[size] = amountCents;
+            epochDays[size] = epochDay;
+            descriptionIds[size] = descriptionId;
+            categoryIds[size] = categoryId;
+            accountIds[size] = accountId;
+            return size++;
+        }
+
+        @Override
+        public void ensureCapacity(int rows) {
+            if (rows <= amounts.length) {
+                return;
+            }
+            amounts = Arrays.copyOf(amounts, rows);
+            epochDays = Arrays.copyOf(epochDays, rows);
+            categoryIds = Arrays.copyOf(categoryIds, rows);
+            accountIds = Arrays.copyOf(accountIds, rows);
+            descriptionIds = Arrays.copyOf(descriptionIds, rows);
+        }
+
+        @Override
+        public long heapBytes() {
+            return 24L * amounts.length + 64L * descriptions.size();
+        }
+    }
+
+    /**
+     * The description strings of a TransactionStore. Ids are handed out in
+     * first-use order.
+     */
+    static class DescriptionDictionary {
+        private final List<String> descriptions = new ArrayList<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        int intern(String description) {
+            Integer id = ids.putIfAbsent(description, descriptions.size());
+            if (id != null) {
+                return id;
+            }
+            descriptions.add(description);
+            return descriptions.size() - 1;
+        }
+
+        String get(int id) {
+            return descriptions.get(id);
+        }
+
+        int size() {
+            return descriptions.size();
+        }
+    }
+
+    /**
+     * Keeps transaction rows in a file of fixed-width records that is
+     * memory mapped in segments, so a long history is read straight from
+     * the page cache instead of living on the heap. Only the description
+     * dictionary stays on the heap.
+     *
+     * Rows past the count recorded in the user's snapshot are not trusted:
+     * on load they are simply overwritten as the journal is replayed.
+     */
+    static class MappedTransactionStore implements TransactionStore {
+        // amount (8), epoch day (4), category (4), account (4), description (4)
+        static final int RECORD_BYTES = 24;
+        private static final int SEGMENT_SHIFT = 20; // 1M rows, 24 MiB per segment
+        private static final int SEGMENT_ROWS = 1 << SEGMENT_SHIFT;
+        private static final int SEGMENT_MASK = SEGMENT_ROWS - 1;
+
+        private final File file;
+        private final DescriptionDictionary descriptions;
+        private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private volatile int size; // Written after the row, so rows below it are readable from any thread
+
+        /**
+         * Opens the first rows of an existing segment file.
+         */
+        MappedTransactionStore(File file, int rows, DescriptionDictionary descriptions) throws IOException {
+            this.file = file;
+            this.descriptions = descriptions;
+            if (rows > 0 && file.length() < (long) rows * RECORD_BYTES) {
+                throw new IOException("Transaction file " + file + " is shorter than its snapshot says");
+            }
+            mapSegments(rows);
+            this.size = rows;
+        }
+
+        /**
+         * Writes all rows of another store into a new segment file.
+         */
+        static MappedTransactionStore copyOf(TransactionStore source, File file) throws IOException {
+            DescriptionDictionary descriptions = new DescriptionDictionary();
+            for (int id = 0; id < source.descriptionCount(); id++) {
+                descriptions.intern(source.descriptionById(id));
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(0); // Discard rows of any earlier copy
+            }
+            MappedTransactionStore store = new MappedTransactionStore(file, 0, descriptions);
+            store.ensureCapacity(source.size());
+            for (int row = 0; row < source.size(); row++) {
+                store.add(source.amountCents(row), source.epochDay(row), source.descriptionId(row),
+                    source.categoryId(row), source.accountId(row));
+            }
+            return store;
+        }
+
+        private void mapSegments(int rows) throws IOException {
+            int needed = (int) (((long) rows + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            if (needed <= segments.length) {
+                return;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int i = segments.length; i < needed; i++) {
+                    // Mapping past the end grows the file; the mapping outlives the channel
+                    grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) i * SEGMENT_ROWS * RECORD_BYTES, (long) SEGMENT_ROWS * RECORD_BYTES);
+                }
+            }
+            segments = grown;
+        }
+
+        private MappedByteBuffer segment(int row) {
+            return segments[row >>> SEGMENT_SHIFT];
+        }
+
+        private static int offset(int row) {
+            return (row & SEGMENT_MASK) * RECORD_BYTES;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long amountCents(int row) {
+            return segment(row).getLong(offset(row));
+        }
+
+        @Override
+        public int epochDay(int row) {
+            return segment(row).getInt(offset(row) + 8);
+        }
+
+        @Override
+        public int categoryId(int row) {
+            return segment(row).getInt(offset(row) + 12);
+        }
+
+        @Override
+        public int accountId(int row) {
+            return segment(row).getInt(offset(row) + 16);
+        }
+
+        @Override
+        public int descriptionId(int row) {
+            return segment(row).getInt(offset(row) + 20);
+        }
+
+        @Override
+        public int internDescription(String description) {
+            return descriptions.intern(description);
+        }
+
+        @Override
+        public String descriptionById(int descriptionId) {
+            return descriptions.get(descriptionId);
+        }
+
+        @Override
+        public int descriptionCount() {
+            return descriptions.size();
+        }
+
+        @Override
+        public int add(long amountCents, int epochDay, int descriptionId, int categoryId, int accountId) {
+            ensureCapacity(size + 1);
+            MappedByteBuffer segment = segment(size);
+            int offset = offset(size);
+            segment.putLong(offset, amountCents);
+            segment.putInt(offset + 8, epochDay);
+            segment.putInt(offset + 12, categoryId);
+            segment.putInt(offset + 16, accountId);
+            segment.putInt(offset + 20, descriptionId);
+            return size++;
+        }
+
+        @Override
+        public void ensureCapacity(int rows) {
+            try {
+                mapSegments(rows);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long heapBytes() {
+            return 64L * descriptions.size() + 64L * segments.length;
+        }
+
+        /**
+         * Flushes written rows to disk, before a snapshot starts relying on them.
+         */
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Cents per month for a run of months, grown in either direction to
+     * cover whatever month is added to.
+     */
+    static class MonthSeries {
+        private long[] cents = new long[0]; // Indexed from firstMonth
+        private int firstMonth;
+
+        /**
+         * Returns the slot for a month, growing the series as needed. Growing
+         * backwards moves every existing month to a later slot.
+         */
+        int slot(int month) {
+            if (cents.length == 0) {
+                // Leave a year of room on either side; histories mostly grow forwards
+                cents = new long[24];
+                firstMonth = month - 12;
+            } else if (month < firstMonth) {
+                int shift = Math.max(firstMonth - month, cents.length);
+                long[] grown = new long[cents.length + shift];
+                System.arraycopy(cents, 0, grown, shift, cents.length);
+                cents = grown;
+                firstMonth -= shift;
+            } else if (month - firstMonth >= cents.length) {
+                cents = Arrays.copyOf(cents, Math.max(month - firstMonth + 1, cents.length * 2));
+            }
+            return month - firstMonth;
+        }
+
+        void add(int month, long amountCents) {
+            int slot = slot(month); // Before reading cents, which slot may replace
+            cents[slot] += amountCents;
+        }
+
+        long get(int month) {
+            int slot = month - firstMonth;
+            return slot >= 0 && slot < cents.length ? cents[slot] : 0;
+        }
+
+        long atSlot(int slot) {
+            return cents[slot];
+        }
+
+        int firstMonth() {
+            return firstMonth;
+        }
+
+        /** The number of slots, from firstMonth on. */
+        int length() {
+            return cents.length;
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            return 32 + 8L * cents.length;
+        }
+    }
+
+    /**
+     * Running expense totals per category, overall and per calendar month,
+     * so budgets and monthly reports never have to scan every transaction.
+     * Months are numbered as year * 12 + (month - 1).
+     */
+    static class SpendingTotals {
+        private long[] spentByCategory = new long[8]; // Expenses as positive cents
+        private MonthSeries[] spentByMonth = new MonthSeries[8]; // Per category
+
+        static int monthIndex(int epochDay) {
+            return monthIndex(LocalDate.ofEpochDay(epochDay));
+        }
+
+        static int monthIndex(LocalDate date) {
+            return date.getYear() * 12 + date.getMonthValue() - 1;
+        }
+
+        static int monthIndex(YearMonth month) {
+            return month.getYear() * 12 + month.getMonthValue() - 1;
+        }
+
+        /**
+         * Accounts for one transaction; income is ignored.
+         */
+        void record(int categoryId, int epochDay, long amountCents) {
+            if (amountCents >= 0) {
+                return;
+            }
+            if (categoryId >= spentByCategory.length) {
+                int capacity = Math.max(categoryId + 1, spentByCategory.length * 2);
+                spentByCategory = Arrays.copyOf(spentByCategory, capacity);
+                spentByMonth = Arrays.copyOf(spentByMonth, capacity);
+            }
+            spentByCategory[categoryId] -= amountCents;
+            if (spentByMonth[categoryId] == null) {
+                spentByMonth[categoryId] = new MonthSeries();
+            }
+            spentByMonth[categoryId].add(monthIndex(epochDay), -amountCents);
+        }
+
+        long spentCents(int categoryId) {
+            return categoryId < spentByCategory.length ? spentByCategory[categoryId] : 0;
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            long bytes = 16L * spentByCategory.length;
+            for (MonthSeries series : spentByMonth) {
+                if (series != null) {
+                    bytes += series.heapBytes();
+                }
+            }
+            return bytes;
+        }
+
+        long spentCents(int categoryId, int month) {
+            if (categoryId >= spentByMonth.length || spentByMonth[categoryId] == null) {
+                return 0;
+            }
+            return spentByMonth[categoryId].get(month);
+        }
+
+        /**
+         * Returns a category's spending for the given number of months ending
+         * with lastMonth, oldest first.
+         */
+        long[] spentCentsByMonth(int categoryId, int lastMonth, int months) {
+            long[] result = new long[months];
+            for (int i = 0; i < months; i++) {
+                result[i] = spentCents(categoryId, lastMonth - months + 1 + i);
+            }
+            return result;
+        }
+
+        boolean matches(SpendingTotals other, int categoryCount) {
+            for (int id = 0; id < categoryCount; id++) {
+                if (spentCents(id) != other.spentCents(id)
+                        || !coversSameMonths(id, other) || !other.coversSameMonths(id, this)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean coversSameMonths(int categoryId, SpendingTotals other) {
+            if (categoryId >= spentByMonth.length || spentByMonth[categoryId] == null) {
+                return true;
+            }
+            MonthSeries series = spentByMonth[categoryId];
+            for (int slot = 0; slot < series.length(); slot++) {
+                if (series.atSlot(slot) != other.spentCents(categoryId, series.firstMonth() + slot)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static SpendingTotals fromStore(TransactionStore store) {
+            SpendingTotals totals = new SpendingTotals();
+            for (int row = 0; row < store.size(); row++) {
+                totals.record(store.categoryId(row), store.epochDay(row), store.amountCents(row));
+            }
+            return totals;
+        }
+    }
+
+    /**
+     * Transaction rows ordered by date, so a period is found by binary
+     * search and read as one contiguous run. Rows arrive mostly in date
+     * order and are simply appended; backdated ones wait in a small pending
+     * buffer until a change merges them in. Queries never merge, so they
+     * can be run as reads; they see only the merged rows.
+     */
+    static class DateIndex {
+        private int[] days = new int[16]; // Sorted by day, then row
+        private int[] rows = new int[16];
+        private int size;
+        private long[] pending = new long[16]; // Backdated rows as day << 32 | row
+        private int pendingSize;
+
+        void add(int row, int epochDay) {
+            if (pendingSize == 0 && (size == 0 || epochDay >= days[size - 1])) {
+                if (size == days.length) {
+                    days = Arrays.copyOf(days, size * 2);
+                    rows = Arrays.copyOf(rows, size * 2);
+                }
+                days[size] = epochDay;
+                rows[size++] = row;
+            } else {
+                if (pendingSize == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingSize * 2);
+                }
+                pending[pendingSize++] = (long) epochDay << 32 | row;
+            }
+        }
+
+        void mergePending() {
+            if (pendingSize == 0) {
+                return;
+            }
+            Arrays.sort(pending, 0, pendingSize);
+            int total = size + pendingSize;
+            int[] mergedDays = days.length >= total ? days : Arrays.copyOf(days, Math.max(total, days.length * 2));
+            int[] mergedRows = rows.length >= total ? rows : Arrays.copyOf(rows, mergedDays.length);
+            // Merge from the back, so the sorted part can be merged in place
+            int i = size - 1;
+            int p = pendingSize - 1;
+            for (int out = total - 1; p >= 0; out--) {
+                int pendingDay = (int) (pending[p] >> 32);
+                int pendingRow = (int) pending[p];
+                if (i >= 0 && (days[i] > pendingDay || (days[i] == pendingDay && rows[i] > pendingRow))) {
+                    mergedDays[out] = days[i];
+                    mergedRows[out] = rows[i--];
+                } else {
+                    mergedDays[out] = pendingDay;
+                    mergedRows[out] = pendingRow;
+                    p--;
+                }
+            }
+            days = mergedDays;
+            rows = mergedRows;
+            size = total;
+            pendingSize = 0;
+        }
+
+        int size() {
+            return size + pendingSize;
+        }
+
+        /** Whether backdated rows are waiting to be merged. */
+        boolean hasPending() {
+            return pendingSize > 0;
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            return 4L * (days.length + rows.length) + 8L * pending.length;
+        }
+
+        /**
+         * @return The first position whose day is on or after epochDay
+         */
+        int firstOnOrAfter(int epochDay) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (days[mid] < epochDay) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return The position just past the last one whose day is on or before epochDay
+         */
+        int endOnOrBefore(int epochDay) {
+            return epochDay == Integer.MAX_VALUE ? size : firstOnOrAfter(epochDay + 1);
+        }
+
+        /**
+         * Returns the merged rows dated from fromDay to toDay inclusive, oldest first.
+         */
+        int[] rowsBetween(int fromDay, int toDay) {
+            int from = firstOnOrAfter(fromDay);
+            return Arrays.copyOfRange(rows, from, Math.max(from, endOnOrBefore(toDay)));
+        }
+
+        static DateIndex fromStore(TransactionStore store) {
+            DateIndex index = new DateIndex();
+            for (int row = 0; row < store.size(); row++) {
+                index.add(row, store.epochDay(row));
+            }
+            index.mergePending();
+            return index;
+        }
+    }
+
+    /**
+     * Per-key running totals bucketed by day, kept as Fenwick trees so the
+     * total for any key over any date range takes O(log days). Each key has
+     * its own window of days, which doubles when a date falls outside it,
+     * so one key's outlying dates do not widen every other key's tree.
+     */
+    static class DayRangeTotals {
+        private static final int INITIAL_DAYS = 1024;
+
+        private static class Tree {
+            long[] nodes; // 1-based, bucket i is day firstDay + i - 1
+            int firstDay;
+            int days;
+
+            Tree(int epochDay) {
+                days = INITIAL_DAYS;
+                firstDay = epochDay - days / 2;
+                nodes = new long[days + 1];
+            }
+        }
+
+        private Tree[] trees = new Tree[8]; // Per key
+
+        void record(int key, int epochDay, long cents) {
+            if (key >= trees.length) {
+                trees = Arrays.copyOf(trees, Math.max(key + 1, trees.length * 2));
+            }
+            Tree tree = trees[key];
+            if (tree == null) {
+                tree = trees[key] = new Tree(epochDay);
+            } else if (epochDay < tree.firstDay || epochDay >= tree.firstDay + tree.days) {
+                growToInclude(tree, epochDay);
+            }
+            long[] nodes = tree.nodes;
+            for (int i = epochDay - tree.firstDay + 1; i <= tree.days; i += i & -i) {
+                nodes[i] += cents;
+            }
+        }
+
+        /**
+         * Total for a key from fromDay to toDay inclusive.
+         */
+        long sum(int key, int fromDay, int toDay) {
+            if (key < 0 || key >= trees.length || trees[key] == null || fromDay > toDay) {
+                return 0;
+            }
+            return prefix(trees[key], toDay) - prefix(trees[key], (long) fromDay - 1);
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            long bytes = 8L * trees.length;
+            for (Tree tree : trees) {
+                if (tree != null) {
+                    bytes += 48 + 8L * tree.nodes.length;
+                }
+            }
+            return bytes;
+        }
+
+        /** Total of the days up to and including epochDay. */
+        private static long prefix(Tree tree, long epochDay) {
+            long total = 0;
+            for (int i = (int) Math.max(0, Math.min(epochDay - tree.firstDay + 1, tree.days)); i > 0; i -= i & -i) {
+                total += tree.nodes[i];
+            }
+            return total;
+        }
+
+        private static void growToInclude(Tree tree, int epochDay) {
+            int days = tree.days;
+            int newFirst = tree.firstDay;
+            long newDays = days;
+            while (epochDay < newFirst || epochDay >= newFirst + newDays) {
+                // Grow towards the date, keeping the existing window inside the new one
+                if (epochDay < newFirst) {
+                    newFirst -= (int) newDays;
+                }
+                newDays *= 2;
+            }
+            int shift = tree.firstDay - newFirst;
+            long[] nodes = tree.nodes;
+            // Undo the linear-time build to get the buckets back, then rebuild at the new size
+            for (int i = days; i > 0; i--) {
+                int parent = i + (i & -i);
+                if (parent <= days) {
+                    nodes[parent] -= nodes[i];
+                }
+            }
+            long[] grown = new long[(int) newDays + 1];
+            System.arraycopy(nodes, 1, grown, 1 + shift, days);
+            for (int i = 1; i <= newDays; i++) {
+                int parent = i + (i & -i);
+                if (parent <= newDays) {
+                    grown[parent] += grown[i];
+                }
+            }
+            tree.nodes = grown;
+            tree.firstDay = newFirst;
+            tree.days = (int) newDays;
+        }
+
+        /**
+         * Expenses per category, as positive cents.
+         */
+        static DayRangeTotals spendingByCategory(TransactionStore store) {
+            DayRangeTotals totals = new DayRangeTotals();
+            for (int row = 0; row < store.size(); row++) {
+                long amountCents = store.amountCents(row);
+                if (amountCents < 0) {
+                    totals.record(store.categoryId(row), store.epochDay(row), -amountCents);
+                }
+            }
+            return totals;
+        }
+
+        /**
+         * Net change per account, income positive and expenses negative.
+         */
+        static DayRangeTotals flowByAccount(TransactionStore store) {
+            DayRangeTotals totals = new DayRangeTotals();
+            for (int row = 0; row < store.size(); row++) {
+                totals.record(store.accountId(row), store.epochDay(row), store.amountCents(row));
+            }
+            return totals;
+        }
+    }
+
+    /**
+     * Net worth over time, built from the transactions month by month.
+     * Each month's net change to net worth is kept as transactions arrive,
+     * along with a checkpoint of the running total at the end of each month
+     * up to the latest one. A new transaction adds to the checkpoints from
+     * its month on, so a recent one costs a month or two, and queries only
+     * read and can be run as reads.
+     */
+    static class NetWorthHistory {
+        private final MonthSeries changeByMonth = new MonthSeries();
+        private long[] checkpoints = new long[0]; // Total change from the series' first month through each slot
+        private int lastSlot = -1; // Last slot with a checkpoint; later months add nothing
+        private long totalChange;
+        // The month of the last recorded day, since consecutive rows are mostly in the same one
+        private int lastMonth;
+        private int lastMonthStart = 1;
+        private int lastMonthEnd;
+
+        /**
+         * Accounts for one transaction's effect on net worth: its amount for
+         * asset accounts, the negated amount for liabilities.
+         */
+        void record(int epochDay, long netWorthCents) {
+            if (epochDay < lastMonthStart || epochDay > lastMonthEnd) {
+                LocalDate date = LocalDate.ofEpochDay(epochDay);
+                lastMonth = SpendingTotals.monthIndex(date);
+                lastMonthStart = (int) date.withDayOfMonth(1).toEpochDay();
+                lastMonthEnd = lastMonthStart + date.lengthOfMonth() - 1;
+            }
+            int firstMonth = changeByMonth.firstMonth();
+            int slot = changeByMonth.slot(lastMonth);
+            int shift = lastSlot < 0 ? 0 : firstMonth - changeByMonth.firstMonth();
+            if (checkpoints.length < changeByMonth.length() || shift > 0) {
+                // Months before the old first one changed nothing, so their checkpoints are 0
+                long[] moved = new long[changeByMonth.length()];
+                System.arraycopy(checkpoints, 0, moved, shift, lastSlot + 1);
+                checkpoints = moved;
+                lastSlot += shift;
+            }
+            if (slot > lastSlot) {
+                Arrays.fill(checkpoints, lastSlot + 1, slot + 1, totalChange);
+                lastSlot = slot;
+            }
+            for (int i = slot; i <= lastSlot; i++) {
+                checkpoints[i] += netWorthCents;
+            }
+            changeByMonth.add(lastMonth, netWorthCents);
+            totalChange += netWorthCents;
+        }
+
+        /**
+         * The change transactions made to net worth, all of them together.
+         */
+        long totalChange() {
+            return totalChange;
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            return changeByMonth.heapBytes() + 8L * checkpoints.length;
+        }
+
+        /**
+         * The change transactions made to net worth up to the end of a month.
+         */
+        long changeThrough(int month) {
+            int slot = month - changeByMonth.firstMonth();
+            if (slot < 0 || lastSlot < 0) {
+                return 0;
+            }
+            return slot >= lastSlot ? totalChange : checkpoints[slot];
+        }
+
+        static NetWorthHistory fromStore(TransactionStore store, List<Account> accounts) {
+            NetWorthHistory history = new NetWorthHistory();
+            for (int row = 0; row < store.size(); row++) {
+                long amountCents = store.amountCents(row);
+                history.record(store.epochDay(row), accounts.get(store.accountId(row)).isAsset ? amountCents : -amountCents);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Finds transactions by any part of their description. Descriptions are
+     * dictionary encoded, so the trigram index covers each distinct text
+     * once, and a posting list per description gives the rows that use it.
+     * Texts are matched case-insensitively.
+     *
+     * Matches are ranked by where the query occurs: the whole description,
+     * the start of it, the start of a later word, anywhere else. Within a
+     * rank newer transactions come first.
+     */
+    static class DescriptionIndex {
+        static final int EXACT = 0;
+        static final int STARTS_WITH = 1;
+        static final int WORD_PREFIX = 2;
+        static final int SUBSTRING = 3;
+
+        /**
+         * The best matching rows, and how many rows matched in all.
+         */
+        static class Matches {
+            final int[] rows;
+            final int total;
+
+            Matches(int[] rows, int total) {
+                this.rows = rows;
+                this.total = total;
+            }
+        }
+
+        /** A growable list of ascending ids. */
+        private static class Postings {
+            int[] ids = new int[4];
+            int size;
+
+            void add(int id) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                ids[size++] = id;
+            }
+        }
+
+        // Concurrent so a read racing a change can't be caught in a half-resized table
+        private final Map<Long, Postings> descriptionsByTrigram = new ConcurrentHashMap<>();
+        private String[] folded = new String[16]; // Lower-cased text per description id
+        private Postings[] rowsByDescription = new Postings[16];
+        private int descriptionCount;
+        private long entryBytes; // Heap used by the strings, postings and map entries, kept as they grow
+
+        void add(TransactionStore store, int row) {
+            int descriptionId = store.descriptionId(row);
+            while (descriptionCount <= descriptionId) {
+                addDescription(store.descriptionById(descriptionCount));
+            }
+            append(rowsByDescription[descriptionId], row);
+        }
+
+        private void append(Postings postings, int id) {
+            if (postings.size == postings.ids.length) {
+                entryBytes += 4L * postings.size;
+            }
+            postings.add(id);
+        }
+
+        private Postings newPostings() {
+            entryBytes += 48;
+            return new Postings();
+        }
+
+        private void addDescription(String description) {
+            int id = descriptionCount++;
+            if (id == folded.length) {
+                folded = Arrays.copyOf(folded, id * 2);
+                rowsByDescription = Arrays.copyOf(rowsByDescription, id * 2);
+            }
+            String text = fold(description);
+            folded[id] = text;
+            entryBytes += 48 + text.length();
+            rowsByDescription[id] = newPostings();
+            for (int i = 0; i + 3 <= text.length(); i++) {
+                Postings ids = descriptionsByTrigram.get(trigram(text, i));
+                if (ids == null) {
+                    ids = newPostings();
+                    descriptionsByTrigram.put(trigram(text, i), ids);
+                    entryBytes += 56; // The map entry and its boxed key
+                }
+                if (ids.size == 0 || ids.ids[ids.size - 1] != id) {
+                    append(ids, id);
+                }
+            }
+        }
+
+        /**
+         * Rough heap footprint, for sizing caches.
+         */
+        long heapBytes() {
+            return 8L * (folded.length + rowsByDescription.length) + entryBytes;
+        }
+
+        private static String fold(String text) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        private static long trigram(String text, int i) {
+            return (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+        }
+
+        /**
+         * @return The rank of the best place query occurs in text, or -1 if it does not
+         */
+        static int rank(String text, String query) {
+            int at = text.indexOf(query);
+            if (at < 0) {
+                return -1;
+            }
+            if (at == 0) {
+                return text.length() == query.length() ? EXACT : STARTS_WITH;
+            }
+            for (; at > 0; at = text.indexOf(query, at + 1)) {
+                if (!Character.isLetterOrDigit(text.charAt(at - 1))) {
+                    return WORD_PREFIX;
+                }
+            }
+            return SUBSTRING;
+        }
+
+        /**
+         * Returns up to limit of the best matching rows for a query.
+         * @throws IllegalArgumentException if limit is negative
+         */
+        Matches search(String query, int limit, TransactionStore store) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("The result limit cannot be negative.");
+            }
+            String q = fold(query.trim());
+            if (q.isEmpty()) {
+                return new Matches(new int[0], 0);
+            }
+            Postings[] byRank = new Postings[SUBSTRING + 1];
+            int total = 0;
+            Postings candidates = candidates(q);
+            int count = candidates == null ? descriptionCount : candidates.size;
+            for (int i = 0; i < count; i++) {
+                int id = candidates == null ? i : candidates.ids[i];
+                int rank = rank(folded[id], q);
+                if (rank < 0 || rowsByDescription[id].size == 0) {
+                    continue;
+                }
+                if (byRank[rank] == null) {
+                    byRank[rank] = new Postings();
+                }
+                byRank[rank].add(id);
+                total += rowsByDescription[id].size;
+            }
+
+            int[] rows = new int[Math.min(limit, total)];
+            int found = 0;
+            for (int rank = 0; rank < byRank.length && found < rows.length; rank++) {
+                if (byRank[rank] != null) {
+                    found = newestFirst(byRank[rank], store, rows, found);
+                }
+            }
+            return new Matches(rows, total);
+        }
+
+        /**
+         * Narrows a query of three or more characters to the descriptions
+         * that contain all of its trigrams.
+         * @return The candidate description ids, or null to check them all
+         */
+        private Postings candidates(String q) {
+            if (q.length() < 3) {
+                return null;
+            }
+            Postings smallest = null;
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                Postings ids = descriptionsByTrigram.get(trigram(q, i));
+                if (ids == null) {
+                    return new Postings();
+                }
+                if (smallest == null || ids.size < smallest.size) {
+                    smallest = ids;
+                }
+            }
+            Postings result = new Postings();
+            for (int k = 0; k < smallest.size; k++) {
+                result.add(smallest.ids[k]);
+            }
+            for (int i = 0; i + 3 <= q.length() && result.size > 0; i++) {
+                Postings ids = descriptionsByTrigram.get(trigram(q, i));
+                if (ids != smallest) {
+                    result.size = intersect(result, ids);
+                }
+            }
+            return result;
+        }
+
+        /** Keeps the ids of into that are also in other; both are ascending. */
+        private static int intersect(Postings into, Postings other) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < into.size; i++) {
+                int id = into.ids[i];
+                while (j < other.size && other.ids[j] < id) {
+                    j++;
+                }
+                if (j < other.size && other.ids[j] == id) {
+                    into.ids[kept++] = id;
+                }
+            }
+            return kept;
+        }
+
+        /**
+         * Fills rows from position found with the newest rows of the given descriptions.
+         * @return The new number of rows filled
+         */
+        private int newestFirst(Postings descriptionIds, TransactionStore store, int[] rows, int found) {
+            // Keep only the newest rows still needed, ascending, as day << 32 | row
+            long[] newest = new long[rows.length - found];
+            int kept = 0;
+            for (int i = 0; i < descriptionIds.size; i++) {
+                Postings descriptionRows = rowsByDescription[descriptionIds.ids[i]];
+                for (int r = 0; r < descriptionRows.size; r++) {
+                    int row = descriptionRows.ids[r];
+                    long key = (long) store.epochDay(row) << 32 | row;
+                    if (kept < newest.length) {
+                        int at = kept++;
+                        for (; at > 0 && newest[at - 1] > key; at--) {
+                            newest[at] = newest[at - 1];
+                        }
+                        newest[at] = key;
+                    } else if (key > newest[0]) {
+                        int at = 0;
+                        for (; at + 1 < kept && newest[at + 1] < key; at++) {
+                            newest[at] = newest[at + 1];
+                        }
+                        newest[at] = key;
+                    }
+                }
+            }
+            for (int i = kept - 1; i >= 0; i--) {
+                rows[found++] = (int) newest[i];
+            }
+            return found;
+        }
+
+        static DescriptionIndex fromStore(TransactionStore store) {
+            DescriptionIndex index = new DescriptionIndex();
+            for (int row = 0; row < store.size(); row++) {
+                index.add(store, row);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Represents a simple, flat spending category.
+     */
+    static class Category implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String name;
+        transient int id = -1; // Position in the user's categories, set when added
+
+        public Category(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Represents a monthly budget for a specific category.
+     */
+    static class Budget implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // The field layout of files written when amounts were doubles
+        private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("category", Category.class),
+            new ObjectStreamField("limitAmount", double.class),
+            new ObjectStreamField("spentAmount", double.class)
+        };
+
+        Category category;
+        long limitCents;
+        long spentCents; // This would be calculated
+        transient int id = -1; // Position in the user's budgets, set when added
+        transient YearMonth period; // The month spentCents was calculated for
+
+        public Budget(Category category, long limitCents) {
+            this.category = category;
+            this.limitCents = limitCents;
+            this.spentCents = 0; // Calculated on demand
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            category = (Category) fields.get("category", null);
+            limitCents = Math.round(fields.get("limitAmount", 0.0) * 100);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(96);
+            sb.append("Budget for '").append(category.name).append('\'');
+            if (period != null) {
+                sb.append(" (").append(period).append(')');
+            }
+            sb.append(": ");
+            Money.append(sb, spentCents).append(" spent of ");
+            Money.append(sb, limitCents).append(" (");
+            return Money.append(sb, limitCents - spentCents).append(" remaining)").toString();
+        }
+    }
+
+    /**
+     * A user's auto-categorization rules: a description containing a rule's
+     * pattern (ignoring case) goes to the rule's category. When several
+     * patterns match, the longest wins, then the one added first.
+     *
+     * The rules are compiled into an Aho-Corasick automaton on first use
+     * after a change, so classifying a description takes time linear in
+     * its length however many rules there are.
+     */
+    static class CategoryRules {
+
+        static class Rule {
+            final String pattern;
+            final int categoryId; // Index into the user's categories
+
+            Rule(String pattern, int categoryId) {
+                this.pattern = pattern;
+                this.categoryId = categoryId;
+            }
+        }
+
+        private final List<Rule> rules = new ArrayList<>();
+        private Matcher matcher; // null until needed after a change
+
+        void add(String pattern, int categoryId) {
+            rules.add(new Rule(pattern, categoryId));
+            matcher = null;
+        }
+
+        List<Rule> rules() {
+            return rules;
+        }
+
+        int size() {
+            return rules.size();
+        }
+
+        /**
+         * Returns the compiled rules, or null if they changed since last compiled.
+         */
+        Matcher compiled() {
+            return matcher;
+        }
+
+        /**
+         * Returns the compiled rules. The matcher never changes once built,
+         * so it can be shared by threads while the rules are not being edited.
+         */
+        Matcher matcher() {
+            if (matcher == null) {
+                matcher = new Matcher(rules);
+            }
+            return matcher;
+        }
+
+        /**
+         * An Aho-Corasick automaton over the folded patterns. Transitions
+         * live in one open-addressed table keyed by node << 16 | char.
+         */
+        static class Matcher {
+            private static final int ROOT = 0;
+
+            private final long[] keys; // -1 marks a free slot
+            private final int[] targets;
+            private final int mask;
+            private final int[] fail;
+            private final int[] best; // Best rule ending here or at a suffix, or -1
+            private final int[] patternLengths; // Per rule
+            private final int[] categoryIds; // Per rule
+
+            Matcher(List<Rule> rules) {
+                int maxNodes = 1;
+                for (Rule rule : rules) {
+                    maxNodes += rule.pattern.length();
+                }
+                int capacity = Integer.highestOneBit(Math.max(16, maxNodes * 2 - 1)) << 1;
+                keys = new long[capacity];
+                Arrays.fill(keys, -1);
+                targets = new int[capacity];
+                mask = capacity - 1;
+                patternLengths = new int[rules.size()];
+                categoryIds = new int[rules.size()];
+
+                // The trie, with each node's children kept as a linked list for the breadth-first pass
+                int[] own = new int[maxNodes];
+                int[] firstChild = new int[maxNodes];
+                int[] nextSibling = new int[maxNodes];
+                char[] edge = new char[maxNodes];
+                Arrays.fill(own, -1);
+                Arrays.fill(firstChild, -1);
+                int nodes = 1;
+                for (int r = 0; r < rules.size(); r++) {
+                    String pattern = rules.get(r).pattern;
+                    patternLengths[r] = pattern.length();
+                    categoryIds[r] = rules.get(r).categoryId;
+                    if (pattern.isEmpty()) {
+                        continue;
+                    }
+                    int node = ROOT;
+                    for (int i = 0; i < pattern.length(); i++) {
+                        char c = Character.toLowerCase(pattern.charAt(i));
+                        int next = child(node, c);
+                        if (next < 0) {
+                            next = nodes++;
+                            put(node, c, next);
+                            edge[next] = c;
+                            nextSibling[next] = firstChild[node];
+                            firstChild[node] = next;
+                        }
+                        node = next;
+                    }
+                    own[node] = better(own[node], r);
+                }
+
+                fail = new int[nodes];
+                best = new int[nodes];
+                best[ROOT] = -1;
+                int[] queue = new int[nodes];
+                int head = 0;
+                int tail = 0;
+                for (int v = firstChild[ROOT]; v >= 0; v = nextSibling[v]) {
+                    fail[v] = ROOT;
+                    best[v] = own[v];
+                    queue[tail++] = v;
+                }
+                while (head < tail) {
+                    int u = queue[head++];
+                    for (int v = firstChild[u]; v >= 0; v = nextSibling[v]) {
+                        int f = fail[u];
+                        int target;
+                        while ((target = child(f, edge[v])) < 0 && f != ROOT) {
+                            f = fail[f];
+                        }
+                        fail[v] = target < 0 ? ROOT : target;
+                        // Parents come first, so the fail node's best already covers its suffixes
+                        best[v] = better(own[v], best[fail[v]]);
+                        queue[tail++] = v;
+                    }
+                }
+            }
+
+            private static int slot(long key, int mask) {
+                return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            }
+
+            private int child(int node, char c) {
+                long key = (long) node << 16 | c;
+                for (int i = slot(key, mask); keys[i] != -1; i = (i + 1) & mask) {
+                    if (keys[i] == key) {
+                        return targets[i];
+                    }
+                }
+                return -1;
+            }
+
+            private void put(int node, char c, int target) {
+                long key = (long) node << 16 | c;
+                int i = slot(key, mask);
+                while (keys[i] != -1) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                targets[i] = target;
+            }
+
+            /** The preferred of two rules, either of which may be -1. */
+            private int better(int a, int b) {
+                if (a < 0 || b < 0) {
+                    return Math.max(a, b);
+                }
+                if (patternLengths[a] != patternLengths[b]) {
+                    return patternLengths[a] > patternLengths[b] ? a : b;
+                }
+                return Math.min(a, b);
+            }
+
+            /**
+             * @return The index of the winning rule for a description, or -1 if none matches
+             */
+            int match(CharSequence text) {
+                int node = ROOT;
+                int winner = -1;
+                for (int i = 0; i < text.length(); i++) {
+                    char c = Character.toLowerCase(text.charAt(i));
+                    int next;
+                    while ((next = child(node, c)) < 0 && node != ROOT) {
+                        node = fail[node];
+                    }
+                    node = next < 0 ? ROOT : next;
+                    if (best[node] >= 0) {
+                        winner = better(winner, best[node]);
+                    }
+                }
+                return winner;
+            }
+
+            /**
+             * @return The category id the rules give a description, or -1 if none matches
+             */
+            int categoryId(CharSequence text) {
+                int rule = match(text);
+                return rule < 0 ? -1 : categoryIds[rule];
+            }
+        }
+    }
+
+    /**
+     * Amounts are held as whole cents in a long so totals are exact.
+     * These helpers convert to and from the text users type and see.
+     */
+    static class Money {
+
+        /**
+         * Parses an amount such as "12", "-12.5" or "+3.07".
+         * @throws NumberFormatException if it is not a number with at most two decimals
+         */
+        static long parse(String text) {
+            return parse(text, 0, text.length());
+        }
+
+        /**
+         * Parses the amount in chars[start, end), ignoring surrounding spaces.
+         */
+        static long parse(CharSequence chars, int start, int end) {
+            while (start < end && Character.isWhitespace(chars.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(chars.charAt(end - 1))) {
+                end--;
+            }
+            int i = start;
+            boolean negative = false;
+            if (i < end && (chars.charAt(i) == '-' || chars.charAt(i) == '+')) {
+                negative = chars.charAt(i) == '-';
+                i++;
+            }
+            long units = 0;
+            int digits = 0;
+            for (; i < end && isDigit(chars.charAt(i)); i++, digits++) {
+                if (digits == 16) {
+                    throw new NumberFormatException("Amount too large: " + chars.subSequence(start, end));
+                }
+                units = units * 10 + (chars.charAt(i) - '0');
+            }
+            long cents = 0;
+            if (i < end && chars.charAt(i) == '.') {
+                i++;
+                int decimals = 0;
+                for (; i < end && isDigit(chars.charAt(i)); i++, decimals++, digits++) {
+                    if (decimals == 2) {
+                        throw new NumberFormatException("More than two decimals: " + chars.subSequence(start, end));
+                    }
+                    cents = cents * 10 + (chars.charAt(i) - '0');
+                }
+                if (decimals == 1) {
+                    cents *= 10;
+                }
+            }
+            if (digits == 0 || i != end) {
+                throw new NumberFormatException("Not an amount: " + chars.subSequence(start, end));
+            }
+            long total = units * 100 + cents;
+            return negative ? -total : total;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        /**
+         * Appends an amount as "$1234.56" (or "$-1234.56") without creating garbage.
+         */
+        static StringBuilder append(StringBuilder sb, long cents) {
+            sb.append('$');
+            if (cents < 0) {
+                sb.append('-');
+                cents = -cents;
+            }
+            long fraction = cents % 100;
+            sb.append(cents / 100).append('.');
+            if (fraction < 10) {
+                sb.append('0');
+            }
+            return sb.append(fraction);
+        }
+
+        static String format(long cents) {
+            return append(new StringBuilder(24), cents).toString();
+        }
+    }
+
+    // ====================================================================
+    //
+    // NESTED STATIC SERVICE CLASSES
+    //
+    // ====================================================================
+
+    /**
+     * Records the changes made to a User as compact delta records.
+     * Accounts and categories are only ever appended, so records refer to
+     * them by their position in the user's lists.
+     *
+     * On disk a journal is the snapshot generation it applies to,
+     * followed by the records in the order they were made. Records use the
+     * same field encodings as UserCodec. A journal that ends with a SEAL
+     * record brings its snapshot exactly up to the next generation.
+     */
+    static class ChangeJournal {
+        static final byte ADD_ACCOUNT = 1;
+        static final byte ADD_CATEGORY = 2;
+        static final byte ADD_TRANSACTION = 3;
+        static final byte SET_BUDGET = 4;
+        static final byte ADD_RULE = 5;
+        static final byte SEAL = 6;
+
+        private final BinaryWriter out = new BinaryWriter();
+        private int pendingRecords;
+        int persistedRecords; // Records already in the journal file
+        long sealedGeneration = -1; // From the last replay, if it ended with a seal
+
+        void accountAdded(Account acc) {
+            out.writeByte(ADD_ACCOUNT);
+            out.writeString(acc.accountName);
+            out.writeSignedVarLong(acc.balanceCents);
+            out.writeBoolean(acc.isAsset);
+            pendingRecords++;
+        }
+
+        void categoryAdded(Category cat) {
+            out.writeByte(ADD_CATEGORY);
+            out.writeString(cat.name);
+            pendingRecords++;
+        }
+
+        void transactionAdded(TransactionStore store, int row) {
+            out.writeByte(ADD_TRANSACTION);
+            out.writeSignedVarLong(store.amountCents(row));
+            out.writeString(store.description(row));
+            out.writeSignedVarInt(store.epochDay(row));
+            out.writeVarInt(store.categoryId(row));
+            out.writeVarInt(store.accountId(row));
+            pendingRecords++;
+        }
+
+        void budgetSet(int categoryIndex, long limitCents) {
+            out.writeByte(SET_BUDGET);
+            out.writeVarInt(categoryIndex);
+            out.writeSignedVarLong(limitCents);
+            pendingRecords++;
+        }
+
+        void ruleAdded(String pattern, int categoryIndex) {
+            out.writeByte(ADD_RULE);
+            out.writeString(pattern);
+            out.writeVarInt(categoryIndex);
+            pendingRecords++;
+        }
+
+        /**
+         * Marks the end of a journal whose snapshot plus records now equal
+         * the given snapshot generation.
+         */
+        void sealed(long nextGeneration) {
+            out.writeByte(SEAL);
+            out.writeVarLong(nextGeneration);
+            pendingRecords++;
+        }
+
+        boolean hasPending() {
+            return pendingRecords > 0;
+        }
+
+        int totalRecords() {
+            return persistedRecords + pendingRecords;
+        }
+
+        /**
+         * Writes the pending records and marks them as persisted.
+         */
+        void flushTo(OutputStream os) throws IOException {
+            out.writeTo(os);
+            persistedRecords += pendingRecords;
+            discardPending();
+        }
+
+        /**
+         * Forgets everything, e.g. after the changes were folded into a snapshot.
+         */
+        void reset() {
+            persistedRecords = 0;
+            discardPending();
+        }
+
+        private void discardPending() {
+            out.reset();
+            pendingRecords = 0;
+        }
+
+        /**
+         * Re-applies journal records to a freshly loaded user.
+         * A record cut short by a crash ends the replay.
+         * @return The offset just past the last complete record
+         */
+        static long replay(BinaryReader in, User user) throws IOException {
+            long validBytes = in.position();
+            int records = 0;
+            long sealedGeneration = -1;
+            try {
+                int type;
+                while ((type = in.readByteOrEof()) >= 0) {
+                    if (type == SEAL) {
+                        sealedGeneration = in.readVarLong();
+                    } else {
+                        applyRecord(type, in, user);
+                        sealedGeneration = -1; // Changes after a seal void it
+                    }
+                    validBytes = in.position();
+                    records++;
+                }
+            } catch (EOFException e) {
+                // Torn final record; everything before it is intact
+            }
+            user.journal().reset();
+            user.journal().persistedRecords = records;
+            user.journal().sealedGeneration = sealedGeneration;
+            return validBytes;
+        }
+
+        private static void applyRecord(int type, BinaryReader in, User user) throws IOException {
+            switch (type) {
+                case ADD_ACCOUNT -> {
+                    String name = in.readString();
+                    long balanceCents = in.readSignedVarLong();
+                    user.addAccount(new Account(name, balanceCents, in.readBoolean()));
+                }
+                case ADD_CATEGORY -> user.addCategory(new Category(in.readString()));
+                case ADD_TRANSACTION -> {
+                    long amountCents = in.readSignedVarLong();
+                    String description = in.readString();
+                    Date date = UserCodec.fromEpochDay(in.readSignedVarInt());
+                    Category category = user.categories.get(in.readVarInt());
+                    Account account = user.accounts.get(in.readVarInt());
+                    user.addTransaction(new Transaction(amountCents, description, date, category, account));
+                }
+                case SET_BUDGET -> {
+                    Category category = user.categories.get(in.readVarInt());
+                    user.setBudget(category, in.readSignedVarLong());
+                }
+                case ADD_RULE -> {
+                    String pattern = in.readString();
+                    user.addRule(pattern, user.categories.get(in.readVarInt()));
+                }
+                default -> throw new IOException("Unknown journal record type " + type);
+            }
+        }
+    }
+
+    /**
+     * Buffered encoder for the primitive encodings used by UserCodec and
+     * ChangeJournal. Without an underlying stream it simply grows in memory.
+     */
+    static class BinaryWriter {
+        private final OutputStream out;
+        private byte[] buf;
+        private int pos;
+
+        BinaryWriter() {
+            this(null, 256);
+        }
+
+        BinaryWriter(OutputStream out) {
+            this(out, 64 * 1024);
+        }
+
+        private BinaryWriter(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buf = new byte[bufferSize];
+        }
+
+        private void ensure(int bytes) {
+            if (pos + bytes <= buf.length) {
+                return;
+            }
+            if (out != null) {
+                flushBuffer();
+                if (bytes <= buf.length) {
+                    return;
+                }
+            }
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+        }
+
+        private void flushBuffer() {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pos = 0;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBoolean(boolean b) {
+            writeByte(b ? 1 : 0);
+        }
+
+        void writeLong(long v) {
+            ensure(Long.BYTES);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * Writes a non-negative int in 1-5 bytes, 7 bits per byte.
+         */
+        void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        /**
+         * Zig-zag encodes so small negative values stay small.
+         */
+        void writeSignedVarInt(int v) {
+            writeVarInt((v << 1) ^ (v >> 31));
+        }
+
+        void writeSignedVarLong(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        /**
+         * Writes a string as its UTF-8 byte length followed by the bytes.
+         */
+        void writeString(String s) {
+            int len = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < len && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarInt(len);
+                ensure(len);
+                for (int i = 0; i < len; i++) {
+                    buf[pos++] = (byte) s.charAt(i);
+                }
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length);
+                writeBytes(bytes);
+            }
+        }
+
+        /**
+         * Pushes buffered bytes to the underlying stream.
+         */
+        void flush() throws IOException {
+            if (pos > 0) {
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            out.flush();
+        }
+
+        // --- In-memory use ---
+
+        void writeTo(OutputStream os) throws IOException {
+            os.write(buf, 0, pos);
+        }
+
+        void reset() {
+            pos = 0;
+        }
+    }
+
+    /**
+     * Buffered decoder matching BinaryWriter. Tracks how many bytes have
+     * been consumed so callers can find record boundaries.
+     */
+    static class BinaryReader {
+        private final InputStream in;
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos;
+        private int limit;
+        private long consumedBefore; // Bytes consumed before the current buffer
+
+        BinaryReader(InputStream in) {
+            this.in = in;
+        }
+
+        long position() {
+            return consumedBefore + pos;
+        }
+
+        private boolean fill() throws IOException {
+            consumedBefore += limit;
+            pos = 0;
+            limit = 0;
+            int n = in.read(buf);
+            if (n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        /**
+         * @return The next byte (0-255), or -1 at a clean end of stream
+         */
+        int readByteOrEof() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        int readByte() throws IOException {
+            int b = readByteOrEof();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        long readLong() throws IOException {
+            long v = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        int readVarInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readSignedVarInt() throws IOException {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readSignedVarLong() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        byte[] readBytes(int len) throws IOException {
+            byte[] bytes = new byte[len];
+            for (int i = 0; i < len; i++) {
+                bytes[i] = (byte) readByte();
+            }
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int len = readVarInt();
+            if (limit - pos >= len) {
+                String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+                pos += len;
+                return s;
+            }
+            return new String(readBytes(len), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The binary snapshot format for a User.
+     *
+     * Layout (version 4): magic, version, username, password hash, snapshot
+     * generation, then the accounts, categories, budgets, categorization
+     * rules and transactions,
+     * each as a count followed by the entries. Transactions refer to
+     * categories and accounts by index, amounts are stored as whole cents
+     * and dates as days since the epoch. Descriptions are written once and
+     * referenced by number after that, since the same ones recur constantly.
+     *
+     * Version 2 adds a storage byte before the transactions: INLINE_ROWS as
+     * above, or MAPPED_ROWS, where only the row count and description
+     * dictionary are here and the rows live in a MappedTransactionStore file.
+     * Version 3 adds the rules, each as its pattern and category index.
+     * Version 1 and 2 files, which have no rules, are still read.
+     * Version 4 changes nothing here, but PersistenceManager requires its
+     * checksum footer on files of version 4 and later.
+     */
+    static class UserCodec {
+        static final int MAGIC = 0x46544B55; // "FTKU"
+        static final int VERSION = 4;
+        static final int FIRST_CHECKSUMMED_VERSION = 4; // Files from here on must carry a footer
+        static final byte INLINE_ROWS = 0;
+        static final byte MAPPED_ROWS = 1;
+
+        static int toEpochDay(Date date) {
+            return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+        }
+
+        static Date fromEpochDay(int epochDay) {
+            return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        }
+
+        static void encode(User user, OutputStream os) throws IOException {
+            BinaryWriter out = new BinaryWriter(os);
+            out.writeLong(((long) MAGIC << 32) | VERSION);
+            out.writeString(user.username);
+            out.writeString(user.passwordHash);
+            out.writeLong(user.snapshotGeneration);
+
+            out.writeVarInt(user.accounts.size());
+            for (Account acc : user.accounts) {
+                out.writeString(acc.accountName);
+                out.writeSignedVarLong(acc.balanceCents);
+                out.writeBoolean(acc.isAsset);
+            }
+
+            out.writeVarInt(user.categories.size());
+            for (Category cat : user.categories) {
+                out.writeString(cat.name);
+            }
+
+            out.writeVarInt(user.budgets.size());
+            for (Budget b : user.budgets) {
+                out.writeVarInt(b.category.id);
+                out.writeSignedVarLong(b.limitCents);
+            }
+
+            out.writeVarInt(user.rules.size());
+            for (CategoryRules.Rule rule : user.rules.rules()) {
+                out.writeString(rule.pattern);
+                out.writeVarInt(rule.categoryId);
+            }
+
+            TransactionStore store = user.transactions;
+            if (store instanceof MappedTransactionStore) {
+                out.writeByte(MAPPED_ROWS);
+                out.writeVarInt(store.size());
+                out.writeVarInt(store.descriptionCount());
+                for (int id = 0; id < store.descriptionCount(); id++) {
+                    out.writeString(store.descriptionById(id));
+                }
+                out.flush();
+                return;
+            }
+            out.writeByte(INLINE_ROWS);
+            out.writeVarInt(store.size());
+            int nextNewDescription = 0;
+            for (int row = 0; row < store.size(); row++) {
+                out.writeSignedVarLong(store.amountCents(row));
+                out.writeSignedVarInt(store.epochDay(row));
+                // 0 introduces a new description, n refers back to description n-1.
+                // Dictionary ids are handed out in first-use order, so they double as these numbers.
+                int descriptionId = store.descriptionId(row);
+                if (descriptionId == nextNewDescription) {
+                    out.writeVarInt(0);
+                    out.writeString(store.descriptionById(descriptionId));
+                    nextNewDescription++;
+                } else {
+                    out.writeVarInt(descriptionId + 1);
+                }
+                out.writeVarInt(store.categoryId(row));
+                out.writeVarInt(store.accountId(row));
+            }
+            out.flush();
+        }
+
+        /**
+         * @param segmentFile Where the rows are if the snapshot says they are mapped
+         */
+        static User decode(InputStream is, File segmentFile) throws IOException {
+            BinaryReader in = new BinaryReader(is);
+            long header = in.readLong();
+            if ((int) (header >>> 32) != MAGIC) {
+                throw new IOException("Not a Finance Tracker data file");
+            }
+            int version = (int) header;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported data file version " + version);
+            }
+            User user = new User(in.readString(), in.readString());
+            user.snapshotGeneration = in.readLong();
+
+            int accountCount = in.readVarInt();
+            for (int i = 0; i < accountCount; i++) {
+                String name = in.readString();
+                long balanceCents = in.readSignedVarLong();
+                user.accounts.add(new Account(name, balanceCents, in.readBoolean()));
+            }
+
+            int categoryCount = in.readVarInt();
+            for (int i = 0; i < categoryCount; i++) {
+                user.categories.add(new Category(in.readString()));
+            }
+
+            int budgetCount = in.readVarInt();
+            for (int i = 0; i < budgetCount; i++) {
+                Category category = user.categories.get(in.readVarInt());
+                user.budgets.add(new Budget(category, in.readSignedVarLong()));
+            }
+            user.rebuildLookups();
+
+            int ruleCount = version >= 3 ? in.readVarInt() : 0;
+            for (int i = 0; i < ruleCount; i++) {
+                String pattern = in.readString();
+                user.rules.add(pattern, in.readVarInt());
+            }
+
+            int storage = version >= 2 ? in.readByte() : INLINE_ROWS;
+            if (storage == MAPPED_ROWS) {
+                int rows = in.readVarInt();
+                DescriptionDictionary descriptions = new DescriptionDictionary();
+                int descriptionCount = in.readVarInt();
+                for (int i = 0; i < descriptionCount; i++) {
+                    descriptions.intern(in.readString());
+                }
+                user.transactions = new MappedTransactionStore(segmentFile, rows, descriptions);
+                user.rebuildDerivedState();
+                return user;
+            }
+            int txCount = in.readVarInt();
+            TransactionStore store = user.transactions;
+            store.ensureCapacity(txCount);
+            for (int i = 0; i < txCount; i++) {
+                long amountCents = in.readSignedVarLong();
+                int epochDay = in.readSignedVarInt();
+                int ref = in.readVarInt();
+                int descriptionId = ref == 0 ? store.internDescription(in.readString()) : ref - 1;
+                // Balances were saved after these were applied, so bypass addTransaction
+                store.add(amountCents, epochDay, descriptionId, in.readVarInt(), in.readVarInt());
+            }
+            user.rebuildDerivedState();
+            return user;
+        }
+    }
+
+    /**
+     * Username -> credentials, kept apart from the (much larger) user data
+     * so logins and username checks never have to read a user's file.
+     * The whole index is read once at startup and held in memory.
+     *
+     * On disk it is a header followed by one record per registration or
+     * password change; when a username appears twice the later record wins.
+     */
+    static class CredentialIndex {
+        static final int MAGIC = 0x46544B43; // "FTKC"
+        static final int VERSION = 1;
+
+        /**
+         * A stored password hash with the parameters needed to check a password against it.
+         */
+        static class Credential {
+            final String passwordHash;
+            final byte[] salt; // Empty for unsalted hashes
+            final int iterations; // 0 for the plain SHA-256 scheme
+
+            Credential(String passwordHash, byte[] salt, int iterations) {
+                this.passwordHash = passwordHash;
+                this.salt = salt;
+                this.iterations = iterations;
+            }
+        }
+
+        private final File file;
+        private final Map<String, Credential> credentials = new ConcurrentHashMap<>();
+
+        CredentialIndex(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Reads the index file, dropping a torn final record.
+         */
+        void load() throws IOException {
+            if (!file.exists()) {
+                return;
+            }
+            long validBytes = 0;
+            try (InputStream is = new FileInputStream(file)) {
+                BinaryReader in = new BinaryReader(is);
+                long header = in.readLong();
+                if ((int) (header >>> 32) != MAGIC || (int) header != VERSION) {
+                    throw new IOException("Unsupported credential index " + file);
+                }
+                validBytes = in.position();
+                while (in.readByteOrEof() >= 0) {
+                    String username = in.readString();
+                    String passwordHash = in.readString();
+                    byte[] salt = in.readBytes(in.readVarInt());
+                    credentials.put(username, new Credential(passwordHash, salt, in.readVarInt()));
+                    validBytes = in.position();
+                }
+            } catch (EOFException e) {
+                // Torn final record; everything before it is intact
+            }
+            if (validBytes < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validBytes);
+                }
+            }
+        }
+
+        boolean contains(String username) {
+            return credentials.containsKey(username);
+        }
+
+        Credential get(String username) {
+            return credentials.get(username);
+        }
+
+        /**
+         * Adds or replaces a user's credentials and appends them to the file.
+         */
+        synchronized void put(String username, Credential credential) throws IOException {
+            boolean isNew = !file.exists() || file.length() == 0;
+            try (OutputStream os = new FileOutputStream(file, true)) {
+                BinaryWriter out = new BinaryWriter(os);
+                if (isNew) {
+                    out.writeLong(((long) MAGIC << 32) | VERSION);
+                }
+                out.writeByte(1); // Record marker
+                out.writeString(username);
+                out.writeString(credential.passwordHash);
+                out.writeVarInt(credential.salt.length);
+                out.writeBytes(credential.salt);
+                out.writeVarInt(credential.iterations);
+                out.flush();
+            }
+            credentials.put(username, credential);
+        }
+    }
+
+    /**
+     * Derives and checks salted PBKDF2 password hashes on a small pool of
+     * its own, so a burst of logins queues there rather than taking every
+     * core from request handlers. Once the pool and its queue are full,
+     * further requests are refused with RejectedExecutionException.
+     *
+     * Passwords that verified recently are remembered as an HMAC-SHA256 of
+     * salt and password, so a user logging in again skips the key
+     * derivation. The HMAC key is random and never leaves the process, so
+     * remembered entries cannot be attacked offline from a heap dump.
+     * Wrong passwords are never remembered; each guess pays the full cost.
+     *
+     * Hashes from before salting are plain SHA-256 with no salt and 0
+     * iterations. They still verify, and callers should replace them (and
+     * any hash cheaper than the current cost) when needsRehash says so.
+     */
+    static class PasswordHasher {
+        private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+        // Run with -Dfinancetracker.passwordIterations=N to change the cost of new hashes
+        static final int DEFAULT_ITERATIONS = Integer.getInteger("financetracker.passwordIterations", 100_000);
+        static final PasswordHasher DEFAULT =
+            new PasswordHasher(DEFAULT_ITERATIONS, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        private static final int SALT_BYTES = 16;
+        private static final int KEY_BITS = 256;
+        private static final int MAX_QUEUED = 1024;
+        private static final int MAX_REMEMBERED = 10_000;
+        private static final String PREFIX = "pbkdf2$";
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+        // Pool threads live long, so each keeps its own instances
+        private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 algorithm not found", e);
+            }
+        });
+        private static final SecretKeySpec FINGERPRINT_KEY = new SecretKeySpec(randomBytes(32), "HmacSHA256");
+        private static final ThreadLocal<Mac> FINGERPRINT = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(FINGERPRINT_KEY);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 not available", e);
+            }
+        });
+        private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(ALGORITHM + " algorithm not found", e);
+            }
+        });
+
+        private final int iterations;
+        private final ExecutorService pool;
+        private final SecureRandom random = new SecureRandom();
+        // By credential identity, so replacing a credential forgets it; least recently used go first
+        private final LinkedHashMap<CredentialIndex.Credential, byte[]> remembered = new LinkedHashMap<>(16, 0.75f, true);
+
+        PasswordHasher(int iterations, int threads) {
+            this.iterations = iterations;
+            this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                    Thread t = new Thread(r, "password-hasher");
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+
+        /**
+         * Hashes a new password with a fresh salt at the current cost.
+         * @throws RejectedExecutionException if too many hashes are already waiting
+         */
+        CredentialIndex.Credential hash(String password) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            byte[] key = onPool(() -> derive(password, salt, iterations));
+            return new CredentialIndex.Credential(toHex(key), salt, iterations);
+        }
+
+        /**
+         * Checks a password against a stored credential.
+         * @throws RejectedExecutionException if too many checks are already waiting
+         */
+        boolean verify(CredentialIndex.Credential credential, String password) {
+            byte[] fingerprint = fingerprint(credential.salt, password);
+            byte[] known;
+            synchronized (remembered) {
+                known = remembered.get(credential);
+            }
+            if (known != null && MessageDigest.isEqual(known, fingerprint)) {
+                return true;
+            }
+            String hash = credential.iterations == 0
+                ? sha256Hex(password)
+                : onPool(() -> toHex(derive(password, credential.salt, credential.iterations)));
+            boolean matches = MessageDigest.isEqual(hash.getBytes(StandardCharsets.US_ASCII),
+                credential.passwordHash.getBytes(StandardCharsets.US_ASCII));
+            if (matches) {
+                synchronized (remembered) {
+                    remembered.put(credential, fingerprint);
+                    if (remembered.size() > MAX_REMEMBERED) {
+                        remembered.remove(remembered.keySet().iterator().next());
+                    }
+                }
+            }
+            return matches;
+        }
+
+        /**
+         * Whether a credential is unsalted or cheaper than new ones.
+         */
+        boolean needsRehash(CredentialIndex.Credential credential) {
+            return credential.iterations < iterations;
+        }
+
+        /**
+         * Runs on the pool and waits, so at most the pool's threads hash at once.
+         */
+        private <T> T onPool(Callable<T> task) {
+            try {
+                return pool.submit(task).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while hashing a password", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Could not hash a password", e.getCause());
+            }
+        }
+
+        static byte[] derive(String password, byte[] salt, int iterations) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+            try {
+                return PBKDF2.get().generateSecret(spec).getEncoded();
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalStateException("Could not hash a password", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        /**
+         * Keyed with the per-process secret, so it is only good for comparing in this process.
+         */
+        private static byte[] fingerprint(byte[] salt, String password) {
+            Mac mac = FINGERPRINT.get();
+            mac.update(salt);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static byte[] randomBytes(int count) {
+            byte[] bytes = new byte[count];
+            new SecureRandom().nextBytes(bytes);
+            return bytes;
+        }
+
+        /**
+         * The unsalted scheme used before PBKDF2, for checking old credentials.
+         */
+        static String sha256Hex(String password) {
+            return toHex(SHA_256.get().digest(password.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        static String toHex(byte[] bytes) {
+            char[] hex = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+            }
+            return new String(hex);
+        }
+
+        private static byte[] fromHex(String hex) {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex, 2 * i, 2 * i + 2, 16);
+            }
+            return bytes;
+        }
+
+        /**
+         * Writes a credential as one string, "pbkdf2$iterations$salt$hash",
+         * for the user file. Unsalted hashes stay bare hex.
+         */
+        static String encode(CredentialIndex.Credential credential) {
+            if (credential.iterations == 0) {
+                return credential.passwordHash;
+            }
+            return PREFIX + credential.iterations + '$' + toHex(credential.salt) + '$' + credential.passwordHash;
+        }
+
+        static CredentialIndex.Credential decode(String encoded) {
+            if (!encoded.startsWith(PREFIX)) {
+                return new CredentialIndex.Credential(encoded, new byte[0], 0);
+            }
+            String[] parts = encoded.split("\\$");
+            return new CredentialIndex.Credential(parts[3], fromHex(parts[2]), Integer.parseInt(parts[1]));
+        }
+    }
+
+    /**
+     * Handles saving and loading user data.
+     * Also handles password security.
+     *
+     * A user is stored as a full snapshot plus a journal of the changes made
+     * since. Saving normally just appends the new journal records; the
+     * snapshot is rewritten once the journal grows past SNAPSHOT_INTERVAL records.
+     *
+     * A snapshot is never overwritten in place. It is written to a temporary
+     * file with a CRC32C footer, forced, and renamed over the old one, which
+     * is kept as "<username>.dat.prev" along with its journal. Loading checks
+     * the footer while decoding, in the same pass, and falls back to the
+     * previous generation if the latest is damaged or missing.
+     *
+     * Users saved by older versions as serialized ".ser" files are converted
+     * to the binary format the first time they are loaded.
+     *
+     * Saves are written by a background thread, so the caller never waits
+     * on the disk unless the durability level says it must. A save only
+     * queues the user. A user saved again before the writer gets to it is
+     * written once, and the changes are encoded under the user's lock but
+     * written outside it. See Durability for when the writes are forced.
+     * Run with -Dfinancetracker.durability=SYNC (say) to change the default.
+     *
+     * Credentials live in a separate CredentialIndex, loaded once when the
+     * manager is created, so checking a login or a username never touches
+     * the user files. Passwords are hashed by the shared PasswordHasher.
+     */
+    static class PersistenceManager {
+
+        private static final String SAVE_DIR = "."; // By default, save in current directory
+        private static final String FILE_EXT = ".dat";
+        private static final String LEGACY_FILE_EXT = ".ser";
+        private static final String JOURNAL_EXT = ".journal";
+        private static final String PREVIOUS_EXT = ".prev"; // Appended to the snapshot and journal names
+        private static final String TEMP_EXT = ".tmp";
+        private static final int FOOTER_MAGIC = 0x4643524B; // "FCRK", after the snapshot's CRC32C
+        private static final String SEGMENT_EXT = ".tx";
+        private static final String CREDENTIALS_FILE = "users.idx";
+        private static final int MAX_USERNAME_LENGTH = 64;
+        private static final int SNAPSHOT_INTERVAL = 1000;
+        // Histories at least this long move to a memory-mapped segment file at the next snapshot
+        private static final int MAPPED_THRESHOLD = 100_000;
+        // Run with -Dfinancetracker.verifyOnLoad=true to cross-check derived totals after every load
+        private static final boolean VERIFY_ON_LOAD = Boolean.getBoolean("financetracker.verifyOnLoad");
+        // Run with -Dfinancetracker.durability=NONE, ASYNC, GROUP_COMMIT or SYNC to change how far saves go
+        private static final Durability DEFAULT_DURABILITY =
+            Durability.fromProperty("financetracker.durability", Durability.GROUP_COMMIT);
+        // The longest a GROUP_COMMIT save waits for others to share its force
+        static final long GROUP_COMMIT_MILLIS = 50;
+
+        /**
+         * How far a save gets before saveUser returns, and so how much a
+         * crash can lose. Whatever the level, snapshot rewrites are forced
+         * before they are renamed into place.
+         */
+        enum Durability {
+            /** Written only by flush or close, and never forced. A crash loses everything since. */
+            NONE,
+            /** Written as soon as the writer gets to it, but left to the OS to force. */
+            ASYNC,
+            /** Written and forced together with the saves made up to GROUP_COMMIT_MILLIS later. */
+            GROUP_COMMIT,
+            /** saveUser returns once the save is forced. Saves made meanwhile share the next force. */
+            SYNC;
+
+            /**
+             * Reads a level from a system property, ignoring case. A value
+             * that names no level is reported and the fallback used instead.
+             */
+            static Durability fromProperty(String key, Durability fallback) {
+                String value = System.getProperty(key);
+                if (value == null) {
+                    return fallback;
+                }
+                try {
+                    return valueOf(value.trim().toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Warning: " + key + "=" + value + " is not one of "
+                        + Arrays.toString(values()) + "; using " + fallback + ".");
+                    return fallback;
+                }
+            }
+        }
+
+        /**
+         * One user's changes, encoded and ready to write.
+         */
+        private static class PreparedSave {
+            final User user;
+            final boolean snapshot; // Replaces the whole file, else appends to the journal
+            final long generation;
+            final byte[] bytes;
+            final byte[] journalTail; // Sealed end of the old journal, written before a snapshot; may be null
+
+            PreparedSave(User user, boolean snapshot, long generation, byte[] bytes) {
+                this(user, snapshot, generation, bytes, null);
+            }
+
+            PreparedSave(User user, boolean snapshot, long generation, byte[] bytes, byte[] journalTail) {
+                this.user = user;
+                this.snapshot = snapshot;
+                this.generation = generation;
+                this.bytes = bytes;
+                this.journalTail = journalTail;
+            }
+        }
+
+        private final String saveDir;
+        private final CredentialIndex credentials;
+        private final PasswordHasher passwords = PasswordHasher.DEFAULT;
+        private final Durability durability;
+        private final Thread writer;
+        // Guarded by itself
+        private final LinkedHashMap<String, User> queued = new LinkedHashMap<>(); // Saves waiting for the writer
+        private final List<String> writing = new ArrayList<>(); // The batch the writer is on
+        private long batchesTaken;
+        private long batchesWritten;
+        private boolean flushRequested; // Write now, without waiting for a group to form
+        private boolean closed;
+
+        public PersistenceManager() {
+            this(SAVE_DIR);
+        }
+
+        public PersistenceManager(String saveDir) {
+            this(saveDir, DEFAULT_DURABILITY);
+        }
+
+        public PersistenceManager(String saveDir, Durability durability) {
+            this.saveDir = saveDir;
+            this.durability = durability;
+            this.credentials = new CredentialIndex(new File(saveDir, CREDENTIALS_FILE));
+            try {
+                credentials.load();
+                indexUnindexedUsers();
+            } catch (IOException e) {
+                System.out.println("Error loading credential index: " + e.getMessage());
+            }
+            writer = new Thread(this::writeQueued, "persistence-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Adds users saved before the credential index existed (or whose
+         * registration was interrupted) to the index. This loads each such
+         * user once; afterwards startup only lists the directory.
+         */
+        private void indexUnindexedUsers() throws IOException {
+            String[] names = new File(saveDir).list();
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                String username;
+                if (name.endsWith(FILE_EXT)) {
+                    username = name.substring(0, name.length() - FILE_EXT.length());
+                } else if (name.endsWith(LEGACY_FILE_EXT)) {
+                    username = name.substring(0, name.length() - LEGACY_FILE_EXT.length());
+                } else {
+                    continue;
+                }
+                if (!credentials.contains(username)) {
+                    User user = loadUser(username);
+                    if (user != null) {
+                        credentials.put(username, PasswordHasher.decode(user.passwordHash));
+                    }
+                }
+            }
+        }
+        private String getFilePath(String username) {
+            return saveDir + File.separator + username + FILE_EXT;
+        }
+
+        private String getLegacyFilePath(String username) {
+            return saveDir + File.separator + username + LEGACY_FILE_EXT;
+        }
+
+        private String getJournalPath(String username) {
+            return saveDir + File.separator + username + JOURNAL_EXT;
+        }
+
+        private String getSegmentPath(String username) {
+            return saveDir + File.separator + username + SEGMENT_EXT;
+        }
+        
+        /**
+         * @throws IllegalArgumentException if the username is not safe to use as a file name
+         */
+        public boolean userExists(String username) {
+            checkUsername(username);
+            return credentials.contains(username);
+        }
+
+        /**
+         * Usernames name the user's files, so they are limited to letters,
+         * digits, '.', '_' and '-', with no leading dot. That keeps them
+         * inside the data directory and off hidden and special names.
+         * @throws IllegalArgumentException if the username is not allowed
+         */
+        static void checkUsername(String username) {
+            boolean safe = !username.isEmpty() && username.length() <= MAX_USERNAME_LENGTH && username.charAt(0) != '.';
+            for (int i = 0; i < username.length() && safe; i++) {
+                char c = username.charAt(i);
+                safe = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '_' || c == '-';
+            }
+            if (!safe) {
+                throw new IllegalArgumentException("Usernames may only use letters, digits, '.', '_' and '-', "
+                    + "may not start with '.', and are at most " + MAX_USERNAME_LENGTH + " characters.");
+            }
+        }
+
+        /**
+         * Hashes a password for a new or changed credential. Slow by design.
+         */
+        public CredentialIndex.Credential newCredential(String password) {
+            return passwords.hash(password);
+        }
+
+        /**
+         * Creates and saves a new user and records their credentials.
+         * @return The new user, or null if it could not be saved
+         * @throws IllegalArgumentException if the username is not safe to use as a file name
+         */
+        public User registerUser(String username, CredentialIndex.Credential credential) {
+            checkUsername(username);
+            User user = new User(username, PasswordHasher.encode(credential));
+            try {
+                // Data file first: a user file without an index entry is picked up at the next startup
+                writeSnapshot(user);
+                credentials.put(username, credential);
+                return user;
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error saving user data: " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Checks a password against the credential index without loading the
+         * user. An unsalted or outdated hash is replaced once the password
+         * checks out; the user's record follows at its next syncPasswordHash.
+         * @throws RejectedExecutionException if too many logins are already being checked
+         */
+        public boolean authenticate(String username, String password) {
+            CredentialIndex.Credential credential = credentials.get(username);
+            if (credential == null || !passwords.verify(credential, password)) {
+                return false;
+            }
+            if (passwords.needsRehash(credential)) {
+                try {
+                    credentials.put(username, passwords.hash(password));
+                } catch (IOException | RejectedExecutionException e) {
+                    // Keep the old hash; it is tried again at the next login
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Copies the user's hash from the credential index into its record if
+         * authenticate has upgraded it since, and saves the user. The index
+         * decides logins, but the record is what rebuilds the index if it is lost.
+         */
+        public void syncPasswordHash(User user) {
+            CredentialIndex.Credential credential = credentials.get(user.username);
+            if (credential == null) {
+                return;
+            }
+            String encoded = PasswordHasher.encode(credential);
+            boolean changed = user.change(() -> {
+                if (encoded.equals(user.passwordHash)) {
+                    return false;
+                }
+                user.passwordHash = encoded;
+                user.snapshotDue = true; // The journal has no record for it
+                return true;
+            });
+            if (changed) {
+                saveUser(user);
+            }
+        }
+
+        /**
+         * Saves the changes made to the user since the last save, as far as
+         * the durability level asks for before returning.
+         */
+        public void saveUser(User user) {
+            synchronized (queued) {
+                if (!closed) {
+                    queued.put(user.username, user);
+                    long batch = batchesTaken + 1;
+                    queued.notifyAll();
+                    if (durability == Durability.SYNC) {
+                        awaitBatch(batch);
+                    }
+                    return;
+                }
+            }
+            // Closed: nobody is left to write in the background
+            writeOrReport(prepare(user), durability == Durability.SYNC || durability == Durability.GROUP_COMMIT);
+        }
+
+        /**
+         * Writes every queued save and, unless durability is NONE or ASYNC,
+         * forces it to disk, then returns.
+         */
+        public void flush() {
+            synchronized (queued) {
+                long batch = batchesTaken + (queued.isEmpty() ? 0 : 1);
+                flushRequested = true;
+                queued.notifyAll();
+                awaitBatch(batch);
+            }
+        }
+
+        /**
+         * Flushes and stops the writer. Later saves are written by the caller.
+         */
+        public void close() {
+            flush();
+            synchronized (queued) {
+                closed = true;
+                queued.notifyAll();
+            }
+        }
+
+        /** Must hold the queue's lock. */
+        private void awaitBatch(long batch) {
+            try {
+                while (batchesWritten < batch) {
+                    queued.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits until no save of the user is queued or being written, so
+         * reading its files gives the latest state.
+         */
+        private void awaitWritten(String username) {
+            synchronized (queued) {
+                while (queued.containsKey(username) || writing.contains(username)) {
+                    flushRequested = true;
+                    queued.notifyAll();
+                    long batch = batchesTaken + (queued.containsKey(username) ? 1 : 0);
+                    awaitBatch(batch);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The writer thread: takes everything queued as one batch, writes
+         * it, then forces it with one force per file.
+         */
+        private void writeQueued() {
+            boolean force = durability == Durability.GROUP_COMMIT || durability == Durability.SYNC;
+            while (true) {
+                List<User> batch;
+                synchronized (queued) {
+                    try {
+                        while (!closed && (queued.isEmpty() || durability == Durability.NONE && !flushRequested)) {
+                            queued.wait();
+                        }
+                        // Let the saves arriving shortly after this one join its force
+                        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GROUP_COMMIT_MILLIS);
+                        long remaining;
+                        while (durability == Durability.GROUP_COMMIT && !flushRequested && !closed
+                                && (remaining = deadline - System.nanoTime()) > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(queued, remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed && queued.isEmpty()) {
+                        return;
+                    }
+                    batch = new ArrayList<>(queued.values());
+                    queued.clear();
+                    for (User user : batch) {
+                        writing.add(user.username);
+                    }
+                    batchesTaken++;
+                    flushRequested = false;
+                }
+                for (User user : batch) {
+                    writeOrReport(prepare(user), force);
+                }
+                synchronized (queued) {
+                    writing.clear();
+                    batchesWritten++;
+                    queued.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Encodes the changes made since the last save and marks them saved.
+         * Runs as a change of the user, so no other change lands halfway through.
+         * @return The encoded changes, or null if there are none
+         */
+        private PreparedSave prepare(User user) {
+            return user.change(() -> {
+                ChangeJournal journal = user.journal();
+                try {
+                    if (user.snapshotGeneration == 0 || user.snapshotDue || journal.totalRecords() >= SNAPSHOT_INTERVAL) {
+                        return prepareSnapshot(user);
+                    } else if (journal.hasPending()) {
+                        ByteArrayOutputStream records = new ByteArrayOutputStream();
+                        journal.flushTo(records);
+                        return new PreparedSave(user, false, user.snapshotGeneration, records.toByteArray());
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    System.out.println("Error saving user data: " + e.getMessage());
+                    user.snapshotDue = true;
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Encodes the whole user and starts a new, empty journal. Mapped
+         * histories only have their row count encoded, once they are on disk.
+         *
+         * When the old journal holds every change since its snapshot, the
+         * pending changes and a seal go on the end of it too, so the
+         * previous generation can be brought forward exactly if the new
+         * snapshot is ever damaged.
+         */
+        private PreparedSave prepareSnapshot(User user) throws IOException {
+            if (!(user.transactions instanceof MappedTransactionStore) && user.transactions.size() >= MAPPED_THRESHOLD) {
+                user.transactions = MappedTransactionStore.copyOf(user.transactions, new File(getSegmentPath(user.username)));
+            }
+            if (user.transactions instanceof MappedTransactionStore mapped) {
+                mapped.force();
+            }
+            byte[] journalTail = null;
+            if (user.snapshotGeneration > 0 && !user.snapshotDue) {
+                ByteArrayOutputStream tail = new ByteArrayOutputStream();
+                user.journal().sealed(user.snapshotGeneration + 1);
+                user.journal().flushTo(tail);
+                journalTail = tail.toByteArray();
+            }
+            user.snapshotGeneration++;
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            UserCodec.encode(user, encoded);
+            user.journal().reset();
+            user.snapshotDue = false;
+            return new PreparedSave(user, true, user.snapshotGeneration, encoded.toByteArray(), journalTail);
+        }
+
+        /**
+         * Writes prepared changes, reporting a failure rather than throwing.
+         * The next save then rewrites the whole user, since these changes are
+         * no longer pending in its journal.
+         */
+        private void writeOrReport(PreparedSave save, boolean force) {
+            if (save == null) {
+                return;
+            }
+            try {
+                write(save, force);
+            } catch (IOException e) {
+                System.out.println("Error saving user data: " + e.getMessage());
+                save.user.change(() -> {
+                    save.user.snapshotDue = true;
+                });
+            }
+        }
+
+        /**
+         * Writes prepared changes to the user's files, forcing them to disk if asked.
+         */
+        private void write(PreparedSave save, boolean force) throws IOException {
+            String username = save.user.username;
+            if (!save.snapshot) {
+                appendJournal(username, save.generation, save.bytes, force);
+                return;
+            }
+            if (save.journalTail != null) {
+                // On disk before the rename makes it the previous generation's journal
+                appendJournal(username, save.generation - 1, save.journalTail, true);
+            }
+            writeSnapshotFile(username, save.bytes);
+        }
+
+        private void appendJournal(String username, long generation, byte[] records, boolean force) throws IOException {
+            File file = new File(getJournalPath(username));
+            boolean isNew = !file.exists();
+            try (FileOutputStream os = new FileOutputStream(file, true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                if (isNew) {
+                    out.writeLong(generation);
+                }
+                out.write(records);
+                out.flush();
+                if (force) {
+                    os.getFD().sync();
+                }
+            }
+            if (isNew && force) {
+                forceDirectory(); // Or the new file's entry may not survive a crash
+            }
+        }
+
+        /**
+         * Installs a new snapshot without ever leaving a half-written one
+         * under the real name: temp file and footer, force, then renames.
+         * The old snapshot and its journal become the previous generation.
+         * A crash between the renames leaves only the previous generation,
+         * which loadUser falls back to.
+         */
+        private void writeSnapshotFile(String username, byte[] bytes) throws IOException {
+            Path file = Path.of(getFilePath(username));
+            Path temp = Path.of(getFilePath(username) + TEMP_EXT);
+            Path previous = Path.of(getFilePath(username) + PREVIOUS_EXT);
+            Path journal = Path.of(getJournalPath(username));
+            Path previousJournal = Path.of(getJournalPath(username) + PREVIOUS_EXT);
+            writeWithFooter(temp, bytes);
+            if (Files.exists(file)) {
+                Files.move(file, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (Files.exists(journal)) {
+                    Files.move(journal, previousJournal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else if (Files.exists(previous)) {
+                // Recovered from the previous generation, whose journals are folded in
+                // now. The new snapshot stands in for it too, so a fallback stays exact.
+                Path previousTemp = Path.of(getFilePath(username) + PREVIOUS_EXT + TEMP_EXT);
+                writeWithFooter(previousTemp, bytes);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(previousTemp, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(previousJournal);
+                Files.deleteIfExists(journal);
+            } else {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            forceDirectory();
+        }
+
+        private static void writeWithFooter(Path path, byte[] bytes) throws IOException {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length);
+            try (FileOutputStream os = new FileOutputStream(path.toFile())) {
+                os.write(bytes);
+                DataOutputStream footer = new DataOutputStream(os);
+                footer.writeInt((int) crc.getValue());
+                footer.writeInt(FOOTER_MAGIC);
+                os.getFD().sync();
+            }
+        }
+
+        /**
+         * Makes the renames durable. Not every platform can open a directory; those skip it.
+         */
+        private void forceDirectory() {
+            try (FileChannel dir = FileChannel.open(Path.of(saveDir), StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                // Directory entries are then as durable as the platform makes them
+            }
+        }
+
+        /**
+         * Rewrites the whole user on the caller's thread and forces it to disk,
+         * for users nobody else can reach yet.
+         */
+        private void writeSnapshot(User user) throws IOException {
+            write(prepareSnapshot(user), true);
+        }
+
+        /**
+         * Loads a user from its snapshot and replays its journal.
+         */
+        public User loadUser(String username) {
+            awaitWritten(username);
+            try {
+                User user;
+                if (new File(getFilePath(username)).exists() || new File(getFilePath(username) + PREVIOUS_EXT).exists()) {
+                    user = loadLatestGeneration(username);
+                } else if (new File(getLegacyFilePath(username)).exists()) {
+                    user = migrateLegacyUser(username);
+                } else {
+                    return null;
+                }
+                if (VERIFY_ON_LOAD) {
+                    verifyDerivedState(user);
+                }
+                return user;
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                System.out.println("Error loading user data: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void verifyDerivedState(User user) {
+            if (!user.verifySpendingTotals()) {
+                System.out.println("Warning: spending totals for " + user.username + " were inconsistent and have been recomputed.");
+            }
+            if (!user.verifyBalanceTotals()) {
+                System.out.println("Warning: net worth totals for " + user.username + " were inconsistent and have been recomputed.");
+            }
+        }
+
+        /**
+         * Reads a user saved with Java serialization, rewrites it in the binary
+         * format and keeps the old file as "<username>.ser.migrated".
+         */
+        private User migrateLegacyUser(String username) throws IOException, ClassNotFoundException {
+            File legacyFile = new File(getLegacyFilePath(username));
+            User user;
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacyFile)))) {
+                user = (User) ois.readObject();
+            }
+            replayJournal(user);
+            writeSnapshot(user);
+            legacyFile.renameTo(new File(legacyFile.getPath() + ".migrated"));
+            return user;
+        }
+
+        /**
+         * Loads the latest snapshot and its journal, or the previous
+         * generation if the latest is damaged or was never renamed into place.
+         */
+        private User loadLatestGeneration(String username) throws IOException {
+            File file = new File(getFilePath(username));
+            File previous = new File(getFilePath(username) + PREVIOUS_EXT);
+            if (file.exists()) {
+                try {
+                    User user = decodeVerified(file, username);
+                    replayJournal(user);
+                    return user;
+                } catch (IOException | RuntimeException e) {
+                    if (!previous.exists()) {
+                        throw e;
+                    }
+                    System.out.println("Warning: " + file + " is damaged (" + e + "); using the previous save.");
+                    // Out of the way, so the next snapshot does not move it over the good previous one
+                    file.renameTo(new File(file.getPath() + ".damaged"));
+                }
+            }
+            // Journals are only read from here on; the next snapshot tidies them
+            User user = decodeVerified(previous, username);
+            File journal = new File(getJournalPath(username));
+            // After a crash between renames its journal still has the current name
+            if (!replayJournal(user, journal, false)) {
+                replayJournal(user, new File(getJournalPath(username) + PREVIOUS_EXT), false);
+                // A sealed journal makes this the damaged snapshot's generation, so its journal applies too
+                if (user.journal().sealedGeneration == user.snapshotGeneration + 1) {
+                    user.snapshotGeneration++;
+                    replayJournal(user, journal, false);
+                }
+            }
+            user.snapshotDue = true; // Put a good snapshot back under the real name
+            return user;
+        }
+
+        /**
+         * Decodes a snapshot, checking its CRC32C footer as the bytes stream
+         * past. Version 4 and later files must have the footer; earlier ones
+         * were written before footers existed (or just as they arrived) and
+         * load unchecked when they have none.
+         */
+        private User decodeVerified(File file, String username) throws IOException {
+            long length = file.length();
+            boolean hasFooter = false;
+            int expected = 0;
+            int version = 0;
+            if (length >= 16) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    version = (int) raf.readLong();
+                    raf.seek(length - 8);
+                    expected = raf.readInt();
+                    hasFooter = raf.readInt() == FOOTER_MAGIC;
+                }
+            }
+            if (!hasFooter && version >= UserCodec.FIRST_CHECKSUMMED_VERSION) {
+                throw new IOException("Missing checksum footer in " + file);
+            }
+            if (!hasFooter) {
+                try (InputStream is = new FileInputStream(file)) {
+                    return UserCodec.decode(is, new File(getSegmentPath(username)));
+                }
+            }
+            CRC32C crc = new CRC32C();
+            User user;
+            try (InputStream is = new CheckedInputStream(new LimitedInputStream(new FileInputStream(file), length - 8), crc)) {
+                user = UserCodec.decode(is, new File(getSegmentPath(username)));
+                is.transferTo(OutputStream.nullOutputStream()); // Anything the decoder left still counts
+            }
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Checksum mismatch in " + file);
+            }
+            return user;
+        }
+
+        /**
+         * Stops at a byte limit, so the decoder's read-ahead never takes in the footer.
+         */
+        private static class LimitedInputStream extends FilterInputStream {
+            private long remaining;
+
+            LimitedInputStream(InputStream in, long limit) {
+                super(in);
+                this.remaining = limit;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = in.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+        }
+
+        private boolean replayJournal(User user) throws IOException {
+            return replayJournal(user, new File(getJournalPath(user.username)), true);
+        }
+
+        /**
+         * Replays a journal if it belongs to the user's snapshot generation.
+         * @param tidy Delete the journal if it is stale and cut off a torn last
+         *             record; only for the journal that saves append to
+         * @return Whether the journal was replayed
+         */
+        private boolean replayJournal(User user, File file, boolean tidy) throws IOException {
+            if (!file.exists()) {
+                return false;
+            }
+            long validBytes;
+            try (InputStream is = new FileInputStream(file)) {
+                BinaryReader in = new BinaryReader(is);
+                if (in.readLong() != user.snapshotGeneration) {
+                    validBytes = 0; // Stale journal from an interrupted snapshot
+                } else {
+                    validBytes = ChangeJournal.replay(in, user);
+                }
+            } catch (EOFException e) {
+                validBytes = 0; // Not even a complete header
+            }
+            if (!tidy) {
+                return validBytes > 0;
+            }
+            if (validBytes == 0) {
+                file.delete();
+            } else if (validBytes < file.length()) {
+                // Drop a torn final record so later appends start on a record boundary
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validBytes);
+                }
+            }
+            return validBytes > 0;
+        }
+    }
+
+    /**
+     * Keeps recently used users in memory so logging in again does not go
+     * back to disk, bounded by both a user count and an estimate of their
+     * heap footprint. Least recently used users are evicted first.
+     *
+     * Callers acquire a user before working with it and release it after;
+     * users in use are never evicted. Changes are marked with markDirty and
+     * written behind: on a timer, on eviction, or on close.
+     */
+    static class UserCache {
+        private final PersistenceManager pm;
+        private final int maxUsers;
+        private final long maxBytes;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Entry> evicting = new HashMap<>(); // Evicted, flush still in progress
+        private final ScheduledExecutorService flusher; // null when write-behind is off
+        private long totalBytes;
+
+        private static class Entry {
+            final User user;
+            long bytes;
+            volatile boolean dirty; // Set after each change; cleared just before the user is saved
+            int pins;
+
+            Entry(User user) {
+                this.user = user;
+                this.bytes = estimateBytes(user);
+            }
+        }
+
+        /**
+         * @param flushIntervalMillis How often dirty users are written behind; 0 disables the timer
+         */
+        UserCache(PersistenceManager pm, int maxUsers, long maxBytes, long flushIntervalMillis) {
+            this.pm = pm;
+            this.maxUsers = maxUsers;
+            this.maxBytes = maxBytes;
+            if (flushIntervalMillis > 0) {
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "user-cache-flusher");
+                    t.setDaemon(true);
+                    return t;
+                });
+                flusher.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                flusher = null;
+            }
+        }
+
+        /**
+         * Rough heap cost of a loaded user: the transaction store, the
+         * indexes derived from it, and per-object overheads for everything
+         * else. A mapped store counts only its heap side; its pages belong
+         * to the OS page cache, even though loading reads them all once to
+         * rebuild the indexes. Takes the user's lock briefly.
+         */
+        static long estimateBytes(User user) {
+            return 512
+                + user.transactions.heapBytes()
+                + user.derivedHeapBytes()
+                + (user.accounts.size() + user.categories.size() + user.budgets.size()) * 96L;
+        }
+
+        /**
+         * Returns the user, loading it on a miss, and pins it until release.
+         * @return The user, or null if there is no such user
+         */
+        User acquire(String username) {
+            User user = null;
+            synchronized (this) {
+                Entry entry = entries.get(username);
+                if (entry == null) {
+                    entry = evicting.get(username);
+                    if (entry != null) {
+                        // Still being written out; take it back rather than reading a stale file
+                        entries.put(username, entry);
+                        totalBytes += entry.bytes;
+                    }
+                }
+                if (entry != null) {
+                    entry.pins++;
+                    user = entry.user;
+                }
+            }
+            if (user != null) {
+                pm.syncPasswordHash(user);
+                return user;
+            }
+            User loaded = pm.loadUser(username); // Outside the lock; a racing load of the same user is discarded
+            if (loaded == null) {
+                return null;
+            }
+            List<Entry> evicted;
+            synchronized (this) {
+                Entry entry = entries.get(username);
+                if (entry == null) {
+                    entry = new Entry(loaded);
+                    entries.put(username, entry);
+                    totalBytes += entry.bytes;
+                }
+                entry.pins++;
+                user = entry.user;
+                evicted = evictOverflow();
+            }
+            flushEvicted(evicted);
+            pm.syncPasswordHash(user);
+            return user;
+        }
+
+        void release(User user) {
+            List<Entry> evicted;
+            synchronized (this) {
+                Entry entry = entries.get(user.username);
+                if (entry == null || entry.user != user) {
+                    return;
+                }
+                entry.pins--;
+                evicted = evictOverflow();
+            }
+            flushEvicted(evicted);
+        }
+
+        /**
+         * Notes that the user has unsaved changes. Call after making them.
+         */
+        void markDirty(User user) {
+            long bytes = estimateBytes(user); // Before the cache lock, so a busy user does not hold up the cache
+            synchronized (this) {
+                Entry entry = entries.get(user.username);
+                if (entry == null || entry.user != user) {
+                    return;
+                }
+                entry.dirty = true;
+                totalBytes += bytes - entry.bytes;
+                entry.bytes = bytes;
+            }
+        }
+
+        /**
+         * Removes least recently used, unpinned users until the cache is
+         * within its bounds. Must hold the cache lock.
+         * @return The evicted entries that still need flushing
+         */
+        private List<Entry> evictOverflow() {
+            List<Entry> evicted = new ArrayList<>();
+            Iterator<Entry> it = entries.values().iterator();
+            while ((entries.size() > maxUsers || totalBytes > maxBytes) && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.pins > 0) {
+                    continue;
+                }
+                it.remove();
+                totalBytes -= entry.bytes;
+                if (entry.dirty) {
+                    evicting.put(entry.user.username, entry);
+                    evicted.add(entry);
+                }
+            }
+            return evicted;
+        }
+
+        private void flushEvicted(List<Entry> evicted) {
+            for (Entry entry : evicted) {
+                flush(entry);
+                synchronized (this) {
+                    evicting.remove(entry.user.username, entry);
+                }
+            }
+        }
+
+        private void flush(Entry entry) {
+            // Not under the user's lock: a SYNC save waits for the writer, which needs it.
+            // A change racing this marks the user dirty again, or is in this save already.
+            if (entry.dirty) {
+                entry.dirty = false;
+                pm.saveUser(entry.user);
+            }
+        }
+
+        /**
+         * Writes every dirty user.
+         */
+        void flushAll() {
+            List<Entry> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(entries.values());
+            }
+            for (Entry entry : snapshot) {
+                flush(entry);
+            }
+        }
+
+        /**
+         * Stops the write-behind timer and writes everything still dirty.
+         */
+        void close() {
+            if (flusher != null) {
+                flusher.shutdown();
+            }
+            flushAll();
+            pm.flush();
+        }
+    }
+
+    /**
+     * Generates formatted text reports for the console.
+     *
+     * Each report reads one snapshot of the user, so it is consistent
+     * however many writers run alongside it, and never holds them up for
+     * longer than a single lookup.
+     */
+    static class ReportGenerator {
+
+        public String generateNetWorthReport(User user) {
+            return generateNetWorthReport(user.snapshot());
+        }
+
+        public String generateNetWorthReport(UserSnapshot user) {
+            // Running totals; liabilities are stored as positive balances, but represent debt
+            long totalAssets = user.assetCents;
+            long totalLiabilities = user.liabilityCents;
+            long netWorth = user.netWorthCents();
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("\n--- Net Worth Report ---\n");
+            Money.append(sb.append("Total Assets:      "), totalAssets).append('\n');
+            Money.append(sb.append("Total Liabilities: "), totalLiabilities).append('\n');
+            sb.append("------------------------\n");
+            Money.append(sb.append("Net Worth:         "), netWorth).append('\n');
+            return sb.toString();
+        }
+
+        /**
+         * Net worth at the end of each of the last twelve months.
+         */
+        public String generateNetWorthHistoryReport(User user) {
+            return generateNetWorthHistoryReport(user.snapshot());
+        }
+
+        public String generateNetWorthHistoryReport(UserSnapshot user) {
+            YearMonth lastMonth = YearMonth.now();
+            long[] netWorthCents = user.netWorthCentsByMonth(lastMonth, 12);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("\n--- Net Worth History (month end) ---\n");
+            YearMonth month = lastMonth.minusMonths(netWorthCents.length - 1);
+            for (long netWorth : netWorthCents) {
+                Money.append(sb.append(month).append(": "), netWorth).append("\n");
+                month = month.plusMonths(1);
+            }
+            return sb.toString();
+        }
+
+        public String generateSpendingReport(User user) {
+            return generateSpendingReport(user.snapshot());
+        }
+
+        public String generateSpendingReport(UserSnapshot user) {
+            // Spent amounts as of the snapshot, leaving the user's own budgets alone
+            YearMonth period = YearMonth.now();
+            List<Budget> budgets = user.budgets(period);
             
             StringBuilder sb = new StringBuilder();
-            sb.append("\n--- Monthly Spending by Category Report ---\n");
-            
-            if (user.budgets.isEmpty()) {
-                sb.append("No budgets set. Please set budgets to see this report.\n");
-                return sb.toString();
+            sb.append("\n--- Monthly Spending by Category Report (").append(period).append(") ---\n");
+            
+            if (budgets.isEmpty()) {
+                sb.append("No budgets set. Please set budgets to see this report.\n");
+                return sb.toString();
+            }
+
+            for (Budget b : budgets) {
+                sb.append(b.toString()).append("\n");
+            }
+            return sb.toString();
+        }
+
+        public String generateCategoryTrendReport(User user, Category category) {
+            return generateCategoryTrendReport(user.snapshot(), category);
+        }
+
+        public String generateCategoryTrendReport(UserSnapshot user, Category category) {
+            YearMonth lastMonth = YearMonth.now();
+            long[] spentCents = user.lastTwelveMonthsSpentCents(category, lastMonth);
+            Budget budget = user.budgetFor(category);
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("\n--- 12-Month Spending Trend: ").append(category.name).append(" ---\n");
+            YearMonth month = lastMonth.minusMonths(spentCents.length - 1);
+            for (long spent : spentCents) {
+                Money.append(sb.append(month).append(": "), spent);
+                if (budget != null && spent > budget.limitCents) {
+                    Money.append(sb.append(" (over budget by "), spent - budget.limitCents).append(')');
+                }
+                sb.append("\n");
+                month = month.plusMonths(1);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Spending per category and net change per account between two
+         * epoch days, inclusive.
+         */
+        public String generateDateRangeReport(User user, int fromDay, int toDay) {
+            return generateDateRangeReport(user.snapshot(), fromDay, toDay);
+        }
+
+        public String generateDateRangeReport(UserSnapshot user, int fromDay, int toDay) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("\n--- Activity from ").append(fromDay == Integer.MIN_VALUE ? "the beginning" : LocalDate.ofEpochDay(fromDay))
+                .append(" to ").append(toDay == Integer.MAX_VALUE ? "the end" : LocalDate.ofEpochDay(toDay)).append(" ---\n");
+            sb.append("Spending by category:\n");
+            long totalSpent = 0;
+            for (Category category : user.categories) {
+                long spent = user.spentCentsBetween(category, fromDay, toDay);
+                if (spent != 0) {
+                    Money.append(sb.append("  ").append(category.name).append(": "), spent).append("\n");
+                    totalSpent += spent;
+                }
+            }
+            Money.append(sb.append("  Total: "), totalSpent).append("\n");
+            sb.append("Net change by account:\n");
+            for (Account account : user.accounts) {
+                Money.append(sb.append("  ").append(account.accountName).append(": "),
+                    user.flowCentsBetween(account, fromDay, toDay)).append("\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads CSV one record at a time into a reused buffer, so parsing a large
+     * file creates no per-line strings or arrays. Handles quoted fields,
+     * doubled quotes inside them and both \n and \r\n line endings.
+     */
+    static class CsvReader {
+        private final Reader in;
+        private final char[] buffer = new char[64 * 1024];
+        private int position;
+        private int limit;
+        private final StringBuilder record = new StringBuilder(256);
+        private int[] fieldEnds = new int[8];
+        private int fieldCount;
+        private long lineNumber;
+
+        CsvReader(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Advances to the next record.
+         * @return false once the input is exhausted
+         */
+        boolean next() throws IOException {
+            record.setLength(0);
+            fieldCount = 0;
+            int c = read();
+            if (c < 0) {
+                return false;
+            }
+            lineNumber++;
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0) {
+                        throw new IOException("Unterminated quoted field on line " + lineNumber);
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue; // Re-examine the character after the closing quote
+                        }
+                    } else if (c == '\n') {
+                        lineNumber++;
+                    }
+                    record.append((char) c);
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    endField();
+                } else if (c == '\n' || c < 0) {
+                    break;
+                } else if (c != '\r') {
+                    record.append((char) c);
+                }
+                c = read();
+            }
+            endField();
+            return true;
+        }
+
+        private void endField() {
+            if (fieldCount == fieldEnds.length) {
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            }
+            fieldEnds[fieldCount++] = record.length();
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        /** The line the current record started on, counting from 1. */
+        long lineNumber() {
+            return lineNumber;
+        }
+
+        int fieldCount() {
+            return fieldCount;
+        }
+
+        /** The characters of all fields of the current record, back to back. */
+        CharSequence chars() {
+            return record;
+        }
+
+        int start(int field) {
+            return field == 0 ? 0 : fieldEnds[field - 1];
+        }
+
+        int end(int field) {
+            return fieldEnds[field];
+        }
+
+        String text(int field) {
+            return record.substring(start(field), end(field)).trim();
+        }
+    }
+
+    /**
+     * Imports a bank statement export into one account. Each record is
+     * "date,description,amount[,category]" with dates as yyyy-MM-dd; an
+     * optional header line is skipped. Unknown categories are created, and
+     * rows without one are categorized by the user's rules, or go to
+     * "Uncategorized" if none matches. Bad rows are counted and skipped
+     * rather than failing the whole file.
+     *
+     * Rows go straight into the user's store; the caller saves once at the
+     * end, which writes a single snapshot instead of one save per row.
+     */
+    static class StatementImporter {
+        static final String UNCATEGORIZED = "Uncategorized";
+
+        static class Result {
+            int imported;
+            int skipped;
+            String firstError;
+            long elapsedNanos;
+
+            long rowsPerSecond() {
+                return elapsedNanos == 0 ? 0 : imported * 1_000_000_000L / elapsedNanos;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder sb = new StringBuilder();
+                sb.append("Imported ").append(imported).append(" transactions in ")
+                    .append(elapsedNanos / 1_000_000).append(" ms (").append(rowsPerSecond()).append(" rows/sec)");
+                if (skipped > 0) {
+                    sb.append("\nSkipped ").append(skipped).append(" rows; first problem: ").append(firstError);
+                }
+                return sb.toString();
+            }
+        }
+
+        private final User user;
+        private final Account account;
+
+        StatementImporter(User user, Account account) {
+            this.user = user;
+            this.account = account;
+        }
+
+        /**
+         * The fields of one statement row.
+         */
+        static class Row {
+            int epochDay;
+            long amountCents;
+            String description;
+            String categoryName;
+        }
+
+        Result importFrom(Reader reader) throws IOException {
+            Result result = new Result();
+            long start = System.nanoTime();
+            CsvReader csv = new CsvReader(reader);
+            Row row = new Row();
+            CategoryRules.Matcher rules = user.ruleMatcher();
+            while (csv.next()) {
+                if (parseRow(csv, row, result, rules, user.categories)) {
+                    user.addTransaction(row.amountCents, row.epochDay, row.description, category(row.categoryName), account);
+                    result.imported++;
+                }
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+            return result;
+        }
+
+        /**
+         * Reads the current record into row, categorizing it by the rules if it names no category.
+         * @return false for blank, header and invalid lines; invalid ones are counted in result
+         */
+        static boolean parseRow(CsvReader csv, Row row, Result result, CategoryRules.Matcher rules, List<Category> categories) {
+            if (csv.fieldCount() == 1 && csv.end(0) == 0) {
+                return false; // Blank line
+            }
+            try {
+                if (csv.fieldCount() < 3) {
+                    throw new IllegalArgumentException("expected date,description,amount[,category]");
+                }
+                row.epochDay = parseEpochDay(csv.chars(), csv.start(0), csv.end(0));
+                row.amountCents = Money.parse(csv.chars(), csv.start(2), csv.end(2));
+            } catch (RuntimeException e) {
+                if (csv.lineNumber() == 1) {
+                    return false; // Header line
+                }
+                result.skipped++;
+                if (result.firstError == null) {
+                    result.firstError = "line " + csv.lineNumber() + ": " + e.getMessage();
+                }
+                return false;
+            }
+            row.description = csv.text(1);
+            row.categoryName = csv.fieldCount() > 3 ? csv.text(3) : "";
+            if (row.categoryName.isEmpty()) {
+                int categoryId = rules.categoryId(row.description);
+                row.categoryName = categoryId < 0 ? UNCATEGORIZED : categories.get(categoryId).name;
+            }
+            return true;
+        }
+
+        private Category category(String name) {
+            Category category = user.categoryNamed(name);
+            if (category == null) {
+                category = new Category(name);
+                user.addCategory(category);
+            }
+            return category;
+        }
+
+        /**
+         * Parses a yyyy-MM-dd date straight from the record's characters.
+         */
+        static int parseEpochDay(CharSequence chars, int start, int end) {
+            while (start < end && chars.charAt(start) == ' ') {
+                start++;
+            }
+            while (end > start && chars.charAt(end - 1) == ' ') {
+                end--;
+            }
+            if (end - start != 10 || chars.charAt(start + 4) != '-' || chars.charAt(start + 7) != '-') {
+                throw new IllegalArgumentException("Invalid date: " + chars.subSequence(start, end));
+            }
+            int year = digits(chars, start, start + 4);
+            int month = digits(chars, start + 5, start + 7);
+            int day = digits(chars, start + 8, start + 10);
+            int epochDay;
+            try {
+                epochDay = (int) LocalDate.of(year, month, day).toEpochDay();
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Invalid date: " + chars.subSequence(start, end));
+            }
+            return Transaction.checkEpochDay(epochDay);
+        }
+
+        private static int digits(CharSequence chars, int start, int end) {
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                char c = chars.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new IllegalArgumentException("Invalid date: " + chars.subSequence(start, end));
+                }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Imports several statement files at once, e.g. one per account. Files
+     * are parsed, validated and categorized in parallel on a fork-join pool,
+     * then merged into the user's store in date order by a single thread.
+     * Each account's balance is updated once, with the total of its rows.
+     *
+     * Nothing is added unless every file could be read, so a failed import
+     * leaves the user untouched.
+     */
+    static class ImportPipeline {
+
+        static class Source {
+            final File file;
+            final Account account;
+
+            Source(File file, Account account) {
+                this.file = file;
+                this.account = account;
+            }
+        }
+
+        /**
+         * One file's valid rows, sorted by date.
+         */
+        private static class ParsedStatement {
+            final Source source;
+            final StatementImporter.Result result = new StatementImporter.Result();
+            int size;
+            long[] amounts = new long[1024];
+            int[] epochDays = new int[1024];
+            String[] descriptions = new String[1024];
+            int[] categoryIds = new int[1024]; // Into categoryNames
+            final List<String> categoryNames = new ArrayList<>();
+            Category[] categories; // Resolved from categoryNames before the merge
+            int[] order; // Row indexes in date order
+            long totalCents;
+
+            ParsedStatement(Source source) {
+                this.source = source;
+            }
+
+            void add(long amountCents, int epochDay, String description, int categoryId) {
+                if (size == amounts.length) {
+                    int capacity = size * 2;
+                    amounts = Arrays.copyOf(amounts, capacity);
+                    epochDays = Arrays.copyOf(epochDays, capacity);
+                    descriptions = Arrays.copyOf(descriptions, capacity);
+                    categoryIds = Arrays.copyOf(categoryIds, capacity);
+                }
+                amounts[size] = amountCents;
+                epochDays[size] = epochDay;
+                descriptions[size] = description;
+                categoryIds[size] = categoryId;
+                totalCents += amountCents;
+                size++;
+            }
+
+            void sortByDate() {
+                // Day in the high bits, row in the low bits: a primitive sort that keeps file order within a day
+                long[] keys = new long[size];
+                for (int row = 0; row < size; row++) {
+                    keys[row] = (long) epochDays[row] << 32 | row;
+                }
+                Arrays.sort(keys);
+                order = new int[size];
+                for (int i = 0; i < size; i++) {
+                    order[i] = (int) keys[i];
+                }
+            }
+        }
+
+        private final ForkJoinPool pool;
+
+        ImportPipeline(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        StatementImporter.Result importFiles(User user, List<Source> sources) throws IOException {
+            long start = System.nanoTime();
+            // Compiled here, so the parsing threads only ever read it
+            CategoryRules.Matcher rules = user.ruleMatcher();
+            List<Callable<ParsedStatement>> tasks = new ArrayList<>();
+            for (Source source : sources) {
+                tasks.add(() -> parse(source, rules, user.categories));
+            }
+            List<ParsedStatement> statements = new ArrayList<>();
+            for (Future<ParsedStatement> future : pool.invokeAll(tasks)) {
+                try {
+                    statements.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Import interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+
+            // Rows and balances go in as one change, so a save never sees one without the other
+            user.change(() -> {
+                // New categories are created here, by one thread, so ids stay in first-seen order
+                int rows = 0;
+                for (ParsedStatement statement : statements) {
+                    statement.categories = new Category[statement.categoryNames.size()];
+                    for (int i = 0; i < statement.categories.length; i++) {
+                        String name = statement.categoryNames.get(i);
+                        Category category = user.categoryNamed(name);
+                        if (category == null) {
+                            category = new Category(name);
+                            user.addCategory(category);
+                        }
+                        statement.categories[i] = category;
+                    }
+                    rows += statement.size;
+                }
+
+                user.transactions.ensureCapacity(user.transactions.size() + rows);
+                merge(user, statements);
+                for (ParsedStatement statement : statements) {
+                    user.adjustBalance(statement.source.account, statement.totalCents);
+                }
+            });
+            StatementImporter.Result total = new StatementImporter.Result();
+            for (ParsedStatement statement : statements) {
+                total.imported += statement.result.imported;
+                total.skipped += statement.result.skipped;
+                if (total.firstError == null && statement.result.firstError != null) {
+                    total.firstError = statement.source.file.getName() + " " + statement.result.firstError;
+                }
+            }
+            total.elapsedNanos = System.nanoTime() - start;
+            return total;
+        }
+
+        private static ParsedStatement parse(Source source, CategoryRules.Matcher rules, List<Category> categories) throws IOException {
+            ParsedStatement statement = new ParsedStatement(source);
+            Map<String, Integer> categoryIds = new HashMap<>();
+            StatementImporter.Row row = new StatementImporter.Row();
+            try (Reader reader = new InputStreamReader(new FileInputStream(source.file), StandardCharsets.UTF_8)) {
+                CsvReader csv = new CsvReader(reader);
+                while (csv.next()) {
+                    if (!StatementImporter.parseRow(csv, row, statement.result, rules, categories)) {
+                        continue;
+                    }
+                    Integer categoryId = categoryIds.get(row.categoryName);
+                    if (categoryId == null) {
+                        categoryId = statement.categoryNames.size();
+                        statement.categoryNames.add(row.categoryName);
+                        categoryIds.put(row.categoryName, categoryId);
+                    }
+                    statement.add(row.amountCents, row.epochDay, row.description, categoryId);
+                    statement.result.imported++;
+                }
+            }
+            statement.sortByDate();
+            return statement;
+        }
+
+        /**
+         * Appends every statement's rows, oldest first. There are only a
+         * handful of statements, so the next row is found by scanning their
+         * heads rather than keeping a heap.
+         */
+        private static void merge(User user, List<ParsedStatement> statements) {
+            int[] next = new int[statements.size()];
+            while (true) {
+                int earliest = -1;
+                int earliestDay = Integer.MAX_VALUE;
+                for (int s = 0; s < statements.size(); s++) {
+                    ParsedStatement statement = statements.get(s);
+                    if (next[s] < statement.size) {
+                        int day = statement.epochDays[statement.order[next[s]]];
+                        if (day < earliestDay) {
+                            earliest = s;
+                            earliestDay = day;
+                        }
+                    }
+                }
+                if (earliest < 0) {
+                    return;
+                }
+                ParsedStatement statement = statements.get(earliest);
+                int row = statement.order[next[earliest]++];
+                user.addTransactionRow(statement.amounts[row], earliestDay, statement.descriptions[row],
+                    statement.categories[statement.categoryIds[row]], statement.source.account);
+            }
+        }
+    }
+
+    // ====================================================================
+    //
+    // SERVER MODE
+    //
+    // ====================================================================
+
+    /**
+     * Creates an executor that runs every task on its own thread: virtual
+     * threads when the JDK has them (21+), otherwise pooled platform threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Serves many users from one JVM over HTTP, using the same model classes
+     * and PersistenceManager as the CLI. Requests and responses are plain
+     * text; parameters are form encoded in the query string or body.
+     *
+     *   POST /register      username, password
+     *   POST /login         username, password -> session token
+     *   POST /logout        ends the session
+     *   POST /accounts      name, balance, asset (true/false)
+     *   POST /categories    name
+     *   POST /rules         pattern, category
+     *   POST /transactions  amount, description, account, category (optional if a rule matches),
+     *                       date (yyyy-MM-dd, optional)
+     *   GET  /transactions  offset, limit (optional)
+     *   GET  /transactions/search  q, limit (optional)
+     *   GET  /reports/net-worth
+     *   GET  /reports/net-worth-history
+     *   GET  /reports/spending
+     *
+     * Everything except register and login needs an "Authorization: Bearer
+     * <token>" header. Sessions end at logout or after SESSION_IDLE_MINUTES
+     * without a request. Sessions of the same user share one User object from
+     * a UserCache, which locks itself only around each change or query, and
+     * changes are written behind by the cache.
+     */
+    static class FinanceServer {
+        private static final int BACKLOG = 4096;
+        private static final int MAX_CACHED_USERS = 10_000;
+        private static final long FLUSH_INTERVAL_MILLIS = 2000;
+        private static final long SESSION_IDLE_MINUTES = 30;
+        private static final long SESSION_IDLE_NANOS = TimeUnit.MINUTES.toNanos(SESSION_IDLE_MINUTES);
+
+        private static class Session {
+            final String username;
+            volatile long lastUsedNanos = System.nanoTime();
+
+            Session(String username) {
+                this.username = username;
+            }
+
+            boolean expired(long now) {
+                return now - lastUsedNanos > SESSION_IDLE_NANOS;
+            }
+        }
+
+        private final PersistenceManager pm;
+        private final ReportGenerator reports = new ReportGenerator();
+        private final UserCache users;
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // Token -> session
+        private final Object registrationLock = new Object();
+        private final SecureRandom random = new SecureRandom();
+        private HttpServer server;
+        private ExecutorService executor;
+        private ScheduledExecutorService sessionSweeper;
+
+        FinanceServer(PersistenceManager pm) {
+            this.pm = pm;
+            this.users = new UserCache(pm, MAX_CACHED_USERS, Runtime.getRuntime().maxMemory() / 2, FLUSH_INTERVAL_MILLIS);
+        }
+
+        /**
+         * Entry point for "java FinanceTracker --server [port]".
+         */
+        static void run(String[] args) throws IOException {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            // The JDK server closes keep-alive connections beyond 200 idle ones by default,
+            // which clients with large connection pools see as dropped requests
+            if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+                System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(BACKLOG));
+            }
+            FinanceServer financeServer = new FinanceServer(new PersistenceManager());
+            financeServer.start(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(financeServer::stop));
+            System.out.println("Finance Tracker server listening on port " + financeServer.port());
+        }
+
+        void start(int port) throws IOException {
+            server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+            executor = newThreadPerTaskExecutor();
+            server.setExecutor(executor);
+            server.createContext("/register", exchange -> handle(exchange, "POST", false, this::register));
+            server.createContext("/login", exchange -> handle(exchange, "POST", false, this::login));
+            server.createContext("/logout", exchange -> handle(exchange, "POST", false, (ignored, params) -> logout(exchange)));
+            server.createContext("/accounts", exchange -> handle(exchange, "POST", true, this::addAccount));
+            server.createContext("/categories", exchange -> handle(exchange, "POST", true, this::addCategory));
+            server.createContext("/rules", exchange -> handle(exchange, "POST", true, this::addRule));
+            server.createContext("/transactions", exchange -> handle(exchange,
+                exchange.getRequestMethod().equals("GET") ? "GET" : "POST", true,
+                exchange.getRequestMethod().equals("GET") ? this::listTransactions : this::addTransaction));
+            server.createContext("/transactions/search", exchange -> handle(exchange, "GET", true, this::searchTransactions));
+            server.createContext("/reports/net-worth", exchange -> handle(exchange, "GET", true,
+                (user, params) -> reports.generateNetWorthReport(user)));
+            server.createContext("/reports/net-worth-history", exchange -> handle(exchange, "GET", true,
+                (user, params) -> reports.generateNetWorthHistoryReport(user)));
+            server.createContext("/reports/spending", exchange -> handle(exchange, "GET", true,
+                (user, params) -> reports.generateSpendingReport(user)));
+            sessionSweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            // Sessions that are never used again would otherwise stay forever
+            sessionSweeper.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+            server.start();
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(1);
+            executor.shutdown();
+            sessionSweeper.shutdown();
+            users.close();
+            pm.close();
+        }
+
+        /**
+         * One endpoint's logic. The user is null for endpoints that do not need a session.
+         */
+        interface Endpoint {
+            String handle(User user, Map<String, String> params) throws IOException;
+        }
+
+        private void handle(HttpExchange exchange, String method, boolean needsSession, Endpoint endpoint) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                if (!exchange.getRequestMethod().equals(method)) {
+                    status = 405;
+                    body = "Method not allowed";
+                } else {
+                    Map<String, String> params = parseParams(exchange);
+                    User user = null;
+                    if (needsSession) {
+                        user = sessionUser(exchange);
+                    }
+                    if (needsSession && user == null) {
+                        status = 401;
+                        body = "Not logged in";
+                    } else if (user == null) {
+                        body = endpoint.handle(null, params);
+                    } else {
+                        // No lock here: the User takes its own around each change or query
+                        try {
+                            body = endpoint.handle(user, params);
+                        } finally {
+                            users.release(user);
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = "Error: " + e.getMessage();
+            } catch (SecurityException e) {
+                status = 401;
+                body = "Error: " + e.getMessage();
+            } catch (RejectedExecutionException e) {
+                status = 503;
+                body = "Error: Too many logins at once. Please try again shortly.";
+            } catch (RuntimeException e) {
+                status = 500;
+                body = "An error occurred: " + e.getMessage();
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+
+        /**
+         * Returns the session's user, acquired from the cache; the caller must release it.
+         */
+        private User sessionUser(HttpExchange exchange) {
+            String token = bearerToken(exchange);
+            Session session = token == null ? null : sessions.get(token);
+            if (session == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            if (session.expired(now)) {
+                sessions.remove(token, session);
+                return null;
+            }
+            session.lastUsedNanos = now;
+            return users.acquire(session.username);
+        }
+
+        private static String bearerToken(HttpExchange exchange) {
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            return auth == null || !auth.startsWith("Bearer ") ? null : auth.substring("Bearer ".length());
+        }
+
+        private void expireSessions() {
+            long now = System.nanoTime();
+            sessions.values().removeIf(session -> session.expired(now));
+        }
+
+        private static Map<String, String> parseParams(HttpExchange exchange) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            try (InputStream is = exchange.getRequestBody()) {
+                parseForm(new String(is.readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+            return params;
+        }
+
+        private static void parseForm(String form, Map<String, String> params) {
+            if (form == null || form.isEmpty()) {
+                return;
+            }
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+
+        private static String required(Map<String, String> params, String name) {
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("Missing parameter '" + name + "'");
+            }
+            return value;
+        }
+
+        // --- Endpoints ---
+
+        private String register(User ignored, Map<String, String> params) {
+            String username = required(params, "username");
+            String password = required(params, "password");
+            if (pm.userExists(username)) {
+                throw new IllegalArgumentException("This username is already taken.");
+            }
+            // Hashed outside the lock, so registrations only queue for the file write
+            CredentialIndex.Credential credential = pm.newCredential(password);
+            synchronized (registrationLock) {
+                if (pm.userExists(username)) {
+                    throw new IllegalArgumentException("This username is already taken.");
+                }
+                if (pm.registerUser(username, credential) == null) {
+                    throw new IllegalStateException("Could not save the new user.");
+                }
+            }
+            return "Registration successful! Please login.";
+        }
+
+        private String login(User ignored, Map<String, String> params) {
+            String username = required(params, "username");
+            String password = required(params, "password");
+            if (!pm.authenticate(username, password)) {
+                throw new SecurityException("Invalid username or password.");
+            }
+            byte[] tokenBytes = new byte[18];
+            random.nextBytes(tokenBytes);
+            String token = Base64.getUrlEncoder().encodeToString(tokenBytes);
+            sessions.put(token, new Session(username));
+            return token;
+        }
+
+        private String logout(HttpExchange exchange) {
+            String token = bearerToken(exchange);
+            if (token == null || sessions.remove(token) == null) {
+                throw new SecurityException("Not logged in");
+            }
+            return "Logged out.";
+        }
+
+        private String addAccount(User user, Map<String, String> params) {
+            String name = required(params, "name");
+            long balanceCents = Money.parse(params.getOrDefault("balance", "0"));
+            user.addAccount(new Account(name, balanceCents, Boolean.parseBoolean(params.getOrDefault("asset", "true"))));
+            users.markDirty(user);
+            return "Account '" + name + "' added.";
+        }
+
+        private String addCategory(User user, Map<String, String> params) {
+            String name = required(params, "name");
+            user.addCategory(new Category(name));
+            users.markDirty(user);
+            return "Category '" + name + "' added.";
+        }
+
+        private String addRule(User user, Map<String, String> params) {
+            String pattern = required(params, "pattern");
+            Category category = named(user.categoryNamed(required(params, "category")), params.get("category"));
+            user.addRule(pattern, category);
+            users.markDirty(user);
+            return "Rule for '" + pattern + "' added.";
+        }
+
+        private String addTransaction(User user, Map<String, String> params) {
+            long amountCents = Money.parse(required(params, "amount"));
+            String description = params.getOrDefault("description", "");
+            String dateParam = params.get("date");
+            LocalDate date;
+            try {
+                date = dateParam == null || dateParam.isEmpty() ? LocalDate.now() : LocalDate.parse(dateParam);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date '" + dateParam + "'. Please use yyyy-MM-dd.");
+            }
+            int epochDay = Transaction.checkEpochDay((int) date.toEpochDay());
+            Account account = named(user.accountNamed(required(params, "account")), params.get("account"));
+            String categoryName = params.get("category");
+            Category category = categoryName == null || categoryName.isEmpty() ? user.categorize(description) : null;
+            if (category == null) {
+                category = named(user.categoryNamed(required(params, "category")), categoryName);
+            }
+            user.addTransaction(new Transaction(amountCents, description,
+                UserCodec.fromEpochDay(epochDay), category, account));
+            users.markDirty(user);
+            return "Transaction added successfully.";
+        }
+
+        private String listTransactions(User user, Map<String, String> params) {
+            int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+            int limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+            StringBuilder sb = new StringBuilder();
+            int end = (int) Math.min(user.transactions.size(), (long) offset + limit);
+            for (int row = Math.max(offset, 0); row < end; row++) {
+                sb.append(user.transactionAt(row)).append('\n');
             }
+            return sb.toString();
+        }
 
-            for (Budget b : user.budgets) {
-                sb.append(b.toString()).append("\n");
+        private String searchTransactions(User user, Map<String, String> params) {
+            int limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+            DescriptionIndex.Matches matches = user.searchDescriptions(required(params, "q"), limit);
+            StringBuilder sb = new StringBuilder();
+            for (int row : matches.rows) {
+                sb.append(user.transactionAt(row)).append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Returns the item found by name, or rejects the request if there was none.
+         */
+        private static <T> T named(T item, String name) {
+            if (item == null) {
+                throw new IllegalArgumentException("Unknown name '" + name + "'");
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Drives a running FinanceServer with many concurrent sessions and
+     * reports throughput and latency percentiles.
+     *
+     *   java FinanceTracker --load-test [baseUrl] [sessions] [requestsPerSession]
+     *
+     * Every ten sessions share one user, so the per-user locking is exercised too.
+     */
+    static class LoadTest {
+
+        static void run(String[] args) throws Exception {
+            String baseUrl = args.length > 1 ? args[1] : "http://localhost:8080";
+            int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            int requestsPerSession = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+            System.out.println(new LoadTest(baseUrl).drive(sessions, requestsPerSession));
+        }
+
+        private final String baseUrl;
+        private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+        private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+        LoadTest(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        String drive(int sessions, int requestsPerSession) throws Exception {
+            int users = Math.max(1, sessions / 10);
+            for (int u = 0; u < users; u++) {
+                String username = "load-" + runId + "-" + u;
+                send("POST", "/register", null, form("username", username, "password", "secret"));
+                String token = send("POST", "/login", null, form("username", username, "password", "secret")).body();
+                send("POST", "/accounts", token, form("name", "Checking", "balance", "1000", "asset", "true"));
+                send("POST", "/categories", token, form("name", "Groceries"));
+            }
+
+            long[] latencies = new long[sessions * requestsPerSession];
+            AtomicInteger recorded = new AtomicInteger();
+            AtomicInteger errors = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = newThreadPerTaskExecutor();
+            List<Future<?>> running = new ArrayList<>();
+            for (int s = 0; s < sessions; s++) {
+                String username = "load-" + runId + "-" + (s % users);
+                running.add(executor.submit(() -> {
+                    String token = send("POST", "/login", null, form("username", username, "password", "secret")).body();
+                    start.await();
+                    for (int i = 0; i < requestsPerSession; i++) {
+                        long begin = System.nanoTime();
+                        try {
+                            HttpResponse<String> response = switch (i % 10) {
+                                case 7, 8 -> send("GET", "/transactions?limit=20", token, null);
+                                case 9 -> send("GET", i % 20 == 9 ? "/reports/net-worth" : "/reports/spending", token, null);
+                                default -> send("POST", "/transactions", token,
+                                    form("amount", "-12.34", "description", "Load test", "account", "Checking", "category", "Groceries"));
+                            };
+                            if (response.statusCode() != 200) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        latencies[recorded.getAndIncrement()] = System.nanoTime() - begin;
+                    }
+                    return null;
+                }));
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Future<?> f : running) {
+                f.get();
+            }
+            long elapsed = System.nanoTime() - begin;
+            executor.shutdown();
+
+            long[] sorted = Arrays.copyOf(latencies, recorded.get());
+            Arrays.sort(sorted);
+            return String.format("Sessions: %d, requests: %d, errors: %d%n"
+                    + "Elapsed: %.2f s, throughput: %.0f requests/s%n"
+                    + "Latency p50: %.2f ms, p99: %.2f ms, max: %.2f ms",
+                sessions, sorted.length, errors.get(),
+                elapsed / 1e9, sorted.length / (elapsed / 1e9),
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+
+        private static String form(String... keyValues) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < keyValues.length; i += 2) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(URLEncoder.encode(keyValues[i], StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(keyValues[i + 1], StandardCharsets.UTF_8));
             }
             return sb.toString();
         }
+
+        private HttpResponse<String> send(String method, String path, String token, String body) throws IOException, InterruptedException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .timeout(Duration.ofSeconds(60))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+            if (body != null) {
+                request.header("Content-Type", "application/x-www-form-urlencoded");
+            }
+            if (token != null) {
+                request.header("Authorization", "Bearer " + token);
+            }
+            return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    // ====================================================================
+    //
+    // BENCHMARKS
+    //
+    // ====================================================================
+
+    /**
+     * Builds users with deterministic pseudo-random histories, so benchmark
+     * runs against different versions of the code see identical data.
+     */
+    static class SyntheticData {
+        static final String[] MERCHANTS = {
+            "Amazon", "Walmart", "Target", "Costco", "Starbucks", "Shell", "Uber", "Netflix",
+            "Whole Foods", "Home Depot", "CVS Pharmacy", "Spotify", "Apple", "Delta Air Lines",
+            "Chipotle", "Trader Joe's", "Lyft", "Comcast", "PG&E", "Rent Payment"
+        };
+        static final LocalDate LAST_DAY = LocalDate.of(2024, 12, 31);
+        static final int HISTORY_DAYS = 3650;
+
+        /**
+         * Creates a user with three accounts, a budget per category and the
+         * given number of transactions spread evenly over ten years.
+         */
+        static User generate(long seed, int transactions, int categories) {
+            SplittableRandom random = new SplittableRandom(seed);
+            User user = new User("bench-" + transactions + "-" + categories, "");
+            user.addAccount(new Account("Checking", 500_000, true));
+            user.addAccount(new Account("Savings", 2_000_000, true));
+            user.addAccount(new Account("Credit Card", 0, false));
+            for (int c = 0; c < categories; c++) {
+                user.addCategory(new Category("Category " + c));
+            }
+            for (Category category : user.categories) {
+                user.setBudget(category, 10_000 + random.nextInt(90_000));
+            }
+            user.transactions.ensureCapacity(transactions);
+            int firstDay = (int) LAST_DAY.toEpochDay() - HISTORY_DAYS;
+            for (int i = 0; i < transactions; i++) {
+                user.addTransaction(transaction(random, user, firstDay + (int) ((long) i * HISTORY_DAYS / transactions)));
+                if ((i & 0xFFFF) == 0xFFFF) {
+                    user.journal().reset(); // Not saving, so keep the journal buffer from growing
+                }
+            }
+            user.journal().reset();
+            return user;
+        }
+
+        /**
+         * Writes the user's transactions out as CSV statements, dealing rows
+         * round-robin across the given number of files.
+         */
+        static List<File> writeStatements(User user, File dir, int count) throws IOException {
+            List<File> files = new ArrayList<>();
+            List<Writer> writers = new ArrayList<>();
+            try {
+                for (int f = 0; f < count; f++) {
+                    File file = new File(dir, user.username + "-statement-" + f + ".csv");
+                    files.add(file);
+                    writers.add(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+                    writers.get(f).write("date,description,amount,category\n");
+                }
+                TransactionStore store = user.transactions;
+                for (int row = 0; row < store.size(); row++) {
+                    long cents = Math.abs(store.amountCents(row));
+                    writers.get(row % count).write(LocalDate.ofEpochDay(store.epochDay(row)) + ",\"" + store.description(row)
+                        + "\"," + (store.amountCents(row) < 0 ? "-" : "") + cents / 100 + "." + (cents % 100 < 10 ? "0" : "") + cents % 100
+                        + "," + user.categories.get(store.categoryId(row)).name + "\n");
+                }
+            } finally {
+                for (Writer writer : writers) {
+                    writer.close();
+                }
+            }
+            return files;
+        }
+
+        /**
+         * Creates categorization rules: one per merchant, then made-up
+         * merchant names up to the given count, over categoryCount categories.
+         */
+        static CategoryRules rules(long seed, int count, int categoryCount) {
+            SplittableRandom random = new SplittableRandom(seed);
+            CategoryRules rules = new CategoryRules();
+            for (int i = 0; i < count; i++) {
+                String pattern;
+                if (i < MERCHANTS.length) {
+                    pattern = MERCHANTS[i];
+                } else {
+                    char[] name = new char[5 + random.nextInt(8)];
+                    for (int c = 0; c < name.length; c++) {
+                        name[c] = (char) ('a' + random.nextInt(26));
+                    }
+                    pattern = new String(name);
+                }
+                rules.add(pattern, random.nextInt(categoryCount));
+            }
+            return rules;
+        }
+
+        static Transaction transaction(SplittableRandom random, User user, int epochDay) {
+            boolean income = random.nextInt(10) == 0;
+            long amountCents = income ? 100_000 + random.nextInt(400_000) : -(100 + random.nextInt(50_000));
+            String description = MERCHANTS[random.nextInt(MERCHANTS.length)] + " #" + random.nextInt(100);
+            return new Transaction(amountCents, description, UserCodec.fromEpochDay(epochDay),
+                user.categories.get(random.nextInt(user.categories.size())),
+                user.accounts.get(random.nextInt(user.accounts.size())));
+        }
+    }
+
+    /**
+     * A small benchmark harness for the persistence, ingestion and reporting
+     * hot paths, parameterized over history size and category count.
+     *
+     *   java FinanceTracker --bench [name-filter] [--sizes=1000,100000] [--categories=10,100]
+     *
+     * Each benchmark is warmed up, then timed over several iterations; the
+     * result is the mean time per operation and its spread across iterations.
+     */
+    static class Benchmarks {
+        private static final long WARMUP_NANOS = 500_000_000L;
+        private static final long ITERATION_NANOS = 300_000_000L;
+        private static final int ITERATIONS = 5;
+        private static final long SEED = 42;
+        private static final String[] HISTORY_BENCHMARKS = {
+            "transaction.toString", "user.updateAllBudgetSpentAmounts", "report.netWorth", "report.netWorthHistory",
+            "report.spending", "user.snapshot",
+            "persistence.encodeSnapshot", "persistence.checksumSnapshot", "persistence.loadUser", "persistence.saveUser", "user.addTransaction",
+            "import.sequential", "import.parallel", "search.wordPrefix", "search.substring"
+        };
+        private static final int IMPORT_FILES = 12;
+        private static final int[] RULE_COUNTS = {20, 1_000, 100_000};
+        private static final int[] PASSWORD_ITERATIONS = {10_000, 100_000, 600_000};
+        private static final int LOGIN_STORM_CALLERS = 64;
+        private static final int WRITER_THREADS = 64;
+
+        static volatile long sink; // Consumes results so the JIT cannot drop the work
+
+        interface Body {
+            Object call(long op) throws Exception;
+        }
+
+        private final String filter;
+
+        Benchmarks(String filter) {
+            this.filter = filter;
+        }
+
+        static void run(String[] args) throws Exception {
+            String filter = "";
+            int[] sizes = {1_000, 100_000, 1_000_000};
+            int[] categoryCounts = {10, 100};
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("--sizes=")) {
+                    sizes = parseInts(args[i].substring("--sizes=".length()));
+                } else if (args[i].startsWith("--categories=")) {
+                    categoryCounts = parseInts(args[i].substring("--categories=".length()));
+                } else {
+                    filter = args[i];
+                }
+            }
+            Path dir = Files.createTempDirectory("finance-bench");
+            PersistenceManager pm = new PersistenceManager(dir.toString());
+            try {
+                new Benchmarks(filter).runAll(sizes, categoryCounts, pm, dir);
+            } finally {
+                pm.close();
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+
+        private static int[] parseInts(String csv) {
+            return Arrays.stream(csv.split(",")).mapToInt(s -> Integer.parseInt(s.trim().replace("_", ""))).toArray();
+        }
+
+        private void runAll(int[] sizes, int[] categoryCounts, PersistenceManager pm, Path dir) throws Exception {
+            System.out.printf("%-36s %-50s %14s %12s%n", "Benchmark", "Params", "ns/op", "+/-");
+            ReportGenerator reports = new ReportGenerator();
+
+            measure("password.sha256", "", 0, op -> PasswordHasher.sha256Hex("correct horse battery " + (op & 7)));
+            // On the benchmark thread alone, so 1e9 / (ns/op) is logins per second per core
+            byte[] salt = new byte[16];
+            for (int iterations : PASSWORD_ITERATIONS) {
+                measure("password.pbkdf2", "iterations=" + iterations, 0,
+                    op -> PasswordHasher.derive("correct horse battery " + (op & 7), salt, iterations));
+            }
+            if (matches("login.remembered") || matches("login.storm")) {
+                int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+                PasswordHasher hasher = new PasswordHasher(10_000, threads);
+                CredentialIndex.Credential credential = hasher.hash("correct horse battery");
+                hasher.verify(credential, "correct horse battery");
+                measure("login.remembered", "", 0, op -> hasher.verify(credential, "correct horse battery"));
+                // Wrong passwords are never remembered, so every one pays for the derivation on the pool
+                ExecutorService callers = newThreadPerTaskExecutor();
+                try {
+                    measure("login.storm", "iterations=10000 callers=" + LOGIN_STORM_CALLERS + " threads=" + threads, 0, op -> {
+                        List<Future<Boolean>> attempts = new ArrayList<>();
+                        for (int i = 0; i < LOGIN_STORM_CALLERS; i++) {
+                            String guess = "guess " + i;
+                            attempts.add(callers.submit(() -> hasher.verify(credential, guess)));
+                        }
+                        for (Future<Boolean> attempt : attempts) {
+                            attempt.get();
+                        }
+                        return attempts.size();
+                    });
+                } finally {
+                    callers.shutdown();
+                }
+            }
+            if (matches("rules.categorize")) {
+                SplittableRandom random = new SplittableRandom(SEED);
+                String[] descriptions = new String[1024];
+                for (int i = 0; i < descriptions.length; i++) {
+                    descriptions[i] = "POS " + SyntheticData.MERCHANTS[random.nextInt(SyntheticData.MERCHANTS.length)]
+                        + " #" + random.nextInt(10_000) + " " + LocalDate.ofEpochDay(random.nextInt(20_000));
+                }
+                for (int ruleCount : RULE_COUNTS) {
+                    CategoryRules.Matcher rules = SyntheticData.rules(SEED, ruleCount, 100).matcher();
+                    measure("rules.categorize", "rules=" + ruleCount, 0,
+                        op -> rules.categoryId(descriptions[(int) (op & (descriptions.length - 1))]));
+                }
+            }
+
+            if (matches("user.concurrentWriters")) {
+                ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS);
+                try {
+                    measure("user.concurrentWriters", "threads=" + WRITER_THREADS + " tx=64000", 0,
+                        op -> SelfTest.writeConcurrently(writers, SelfTest.writerUser(), WRITER_THREADS, 1_000));
+                } finally {
+                    writers.shutdown();
+                }
+            }
+
+            if (Arrays.stream(HISTORY_BENCHMARKS).noneMatch(this::matches)) {
+                return;
+            }
+            for (int categories : categoryCounts) {
+                for (int size : sizes) {
+                    String params = "tx=" + size + " categories=" + categories;
+                    User user = SyntheticData.generate(SEED, size, categories);
+
+                    measure("transaction.toString", params, 0,
+                        op -> user.transactionAt((int) (op % user.transactions.size())).toString());
+                    measure("user.updateAllBudgetSpentAmounts", params, 0, op -> {
+                        user.updateAllBudgetSpentAmounts();
+                        return user.budgets.get(0).spentCents;
+                    });
+                    measure("report.netWorth", params, 0, op -> reports.generateNetWorthReport(user));
+                    measure("report.netWorthHistory", params, 0, op -> reports.generateNetWorthHistoryReport(user));
+                    measure("report.spending", params, 0, op -> reports.generateSpendingReport(user));
+                    measure("user.snapshot", params, 0, op -> user.snapshot().rows);
+                    measure("search.wordPrefix", params, 0, op -> user.searchDescriptions("foods", 20).total);
+                    measure("search.substring", params, 0, op -> user.searchDescriptions("mazon #4", 20).total);
+
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                    if (matches("import.sequential") || matches("import.parallel")) {
+                        List<File> files = SyntheticData.writeStatements(user, dir.toFile(), IMPORT_FILES);
+                        measure("import.sequential", params, 0, op -> {
+                            User target = importTarget();
+                            for (int f = 0; f < files.size(); f++) {
+                                try (Reader reader = new InputStreamReader(new FileInputStream(files.get(f)), StandardCharsets.UTF_8)) {
+                                    new StatementImporter(target, target.accounts.get(f)).importFrom(reader);
+                                }
+                            }
+                            return target.transactions.size();
+                        });
+                        ImportPipeline pipeline = new ImportPipeline(ForkJoinPool.commonPool());
+                        measure("import.parallel", params, 0, op -> {
+                            User target = importTarget();
+                            List<ImportPipeline.Source> sources = new ArrayList<>();
+                            for (int f = 0; f < files.size(); f++) {
+                                sources.add(new ImportPipeline.Source(files.get(f), target.accounts.get(f)));
+                            }
+                            return pipeline.importFiles(target, sources).imported;
+                        });
+                        files.forEach(File::delete);
+                    }
+
+                    measure("persistence.encodeSnapshot", params, 0, op -> {
+                        encoded.reset();
+                        UserCodec.encode(user, encoded);
+                        return encoded.size();
+                    });
+                    if (matches("persistence.checksumSnapshot")) {
+                        encoded.reset();
+                        UserCodec.encode(user, encoded);
+                        byte[] snapshot = encoded.toByteArray();
+                        measure("persistence.checksumSnapshot", params, 0, op -> {
+                            CRC32C crc = new CRC32C();
+                            crc.update(snapshot, 0, snapshot.length);
+                            return crc.getValue();
+                        });
+                    }
+                    if (matches("persistence.loadUser") || matches("persistence.saveUser")) {
+                        user.snapshotGeneration = 0; // Forces a full snapshot on the first save
+                        pm.saveUser(user);
+                    }
+                    measure("persistence.loadUser", params, 0, op -> pm.loadUser(user.username));
+
+                    // These two grow the user, so cap how much each iteration adds
+                    SplittableRandom random = new SplittableRandom(SEED);
+                    int lastDay = (int) SyntheticData.LAST_DAY.toEpochDay();
+                    for (PersistenceManager.Durability durability : PersistenceManager.Durability.values()) {
+                        if (!matches("persistence.saveUser")) {
+                            break;
+                        }
+                        // The caller's side only: how long an interactive save keeps it waiting
+                        PersistenceManager saver = new PersistenceManager(dir.toString(), durability);
+                        measure("persistence.saveUser", params + " durability=" + durability, 20_000, op -> {
+                            user.addTransaction(SyntheticData.transaction(random, user, lastDay));
+                            saver.saveUser(user);
+                            return user.transactions.size();
+                        });
+                        saver.close();
+                    }
+                    measure("user.addTransaction", params, 200_000, op -> {
+                        user.addTransaction(SyntheticData.transaction(random, user, lastDay));
+                        if ((op & 0xFFF) == 0) {
+                            user.journal().reset();
+                        }
+                        return user.transactions.size();
+                    });
+                }
+            }
+        }
+
+        private static User importTarget() {
+            User user = new User("import", "");
+            for (int f = 0; f < IMPORT_FILES; f++) {
+                user.addAccount(new Account("Account " + f, 0, true));
+            }
+            return user;
+        }
+
+        private boolean matches(String name) {
+            return name.contains(filter);
+        }
+
+        /**
+         * Warms up, then times the body in batches sized to about a millisecond.
+         * @param maxOpsPerIteration Stops an iteration early after this many operations; 0 for no limit
+         */
+        void measure(String name, String params, long maxOpsPerIteration, Body body) throws Exception {
+            if (!matches(name)) {
+                return;
+            }
+            long op = 0;
+            long batch = 1;
+            long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() < warmupEnd && (maxOpsPerIteration == 0 || op < maxOpsPerIteration)) {
+                long start = System.nanoTime();
+                for (long i = 0; i < batch; i++) {
+                    consume(body.call(op++));
+                }
+                if (System.nanoTime() - start < 1_000_000L) {
+                    batch *= 2;
+                }
+            }
+
+            double[] nanosPerOp = new double[ITERATIONS];
+            for (int it = 0; it < ITERATIONS; it++) {
+                long ops = 0;
+                long start = System.nanoTime();
+                long elapsed;
+                do {
+                    for (long i = 0; i < batch; i++) {
+                        consume(body.call(op++));
+                    }
+                    ops += batch;
+                    elapsed = System.nanoTime() - start;
+                } while (elapsed < ITERATION_NANOS && (maxOpsPerIteration == 0 || ops < maxOpsPerIteration));
+                nanosPerOp[it] = (double) elapsed / ops;
+            }
+
+            double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+            double variance = Arrays.stream(nanosPerOp).map(x -> (x - mean) * (x - mean)).sum() / (ITERATIONS - 1);
+            System.out.printf("%-36s %-50s %14.1f %12.1f%n", name, params, mean, Math.sqrt(variance));
+        }
+
+        private static void consume(Object result) {
+            sink += result == null ? 0 : result.hashCode();
+        }
+    }
+
+    /**
+     * Checks that need the whole program, such as many threads working on
+     * one user at once. Prints PASS or FAIL per check and exits with
+     * status 1 if any failed.
+     *
+     *   java FinanceTracker --self-test
+     */
+    static class SelfTest {
+        private static final int WRITER_THREADS = 64;
+        private static final int READER_THREADS = 4;
+        private static final int PER_WRITER = 1_000;
+
+        private int failures;
+
+        static void run(String[] args) throws Exception {
+            SelfTest test = new SelfTest();
+            test.concurrentWriters();
+            test.failedChange();
+            System.out.println(test.failures == 0 ? "All checks passed" : test.failures + " checks failed");
+            if (test.failures > 0) {
+                System.exit(1);
+            }
+        }
+
+        private void check(String name, boolean passed) {
+            System.out.println((passed ? "PASS " : "FAIL ") + name);
+            if (!passed) {
+                failures++;
+            }
+        }
+
+        /**
+         * Many threads add to one user while others read it; nothing may be
+         * lost, and no read may see a change half made.
+         */
+        private void concurrentWriters() throws Exception {
+            User user = writerUser();
+            CountDownLatch written = new CountDownLatch(1);
+            AtomicInteger tornReads = new AtomicInteger();
+            AtomicInteger movedSnapshots = new AtomicInteger();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < READER_THREADS; r++) {
+                Thread reader = new Thread(() -> {
+                    long lastSpent = 0;
+                    while (written.getCount() > 0) {
+                        UserSnapshot snapshot = user.snapshot();
+                        long netWorth = 0;
+                        for (Account account : snapshot.accounts) {
+                            netWorth += account.isAsset ? snapshot.balanceCents(account) : -snapshot.balanceCents(account);
+                        }
+                        // Expenses only, so spending never goes down
+                        long spent = user.spentCentsBetween(user.categories.get(0), Integer.MIN_VALUE, Integer.MAX_VALUE);
+                        if (netWorth != snapshot.netWorthCents() || spent < lastSpent) {
+                            tornReads.incrementAndGet();
+                        }
+                        lastSpent = spent;
+                        // By now writers have moved on; the snapshot must still answer for its own rows only
+                        TransactionStore store = user.transactions;
+                        long spentThen = 0;
+                        long flowThen = 0;
+                        for (int row = 0; row < snapshot.rows; row++) {
+                            spentThen -= store.categoryId(row) == 0 ? store.amountCents(row) : 0;
+                            flowThen += store.accountId(row) == 0 ? store.amountCents(row) : 0;
+                        }
+                        if (snapshot.spentCentsBetween(user.categories.get(0), Integer.MIN_VALUE, Integer.MAX_VALUE) != spentThen
+                                || snapshot.flowCentsBetween(user.accounts.get(0), Integer.MIN_VALUE, Integer.MAX_VALUE) != flowThen) {
+                            movedSnapshots.incrementAndGet();
+                        }
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(WRITER_THREADS);
+            boolean finished = true;
+            try {
+                writeConcurrently(executor, user, WRITER_THREADS, PER_WRITER);
+            } catch (ExecutionException e) {
+                System.out.println(e.getCause());
+                finished = false;
+            } finally {
+                executor.shutdown();
+                written.countDown();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            String writers = " with " + WRITER_THREADS + " concurrent writers";
+            check("every writer finished" + writers, finished);
+            if (!finished) {
+                return;
+            }
+
+            long[] expectedBalance = new long[2];
+            long[] expectedSpent = new long[2];
+            for (int t = 0; t < WRITER_THREADS; t++) {
+                for (int i = 0; i < PER_WRITER; i++) {
+                    expectedBalance[(t + i) & 1] -= i % 100 + 1;
+                    expectedSpent[i & 1] += i % 100 + 1;
+                }
+            }
+            int rows = WRITER_THREADS * PER_WRITER;
+            int[] dated = new int[1];
+            user.forEachRowBetween(Integer.MIN_VALUE, Integer.MAX_VALUE, row -> dated[0]++);
+            check("every row stored" + writers, user.transactions.size() == rows);
+            check("every row in the date index" + writers, dated[0] == rows);
+            check("every row journaled" + writers, user.journal().totalRecords() == rows + 4);
+            check("no balance update lost" + writers, user.accounts.get(0).balanceCents == expectedBalance[0]
+                && user.accounts.get(1).balanceCents == expectedBalance[1]);
+            check("net worth matches the balances" + writers,
+                user.netWorthCents() == expectedBalance[0] - expectedBalance[1] && user.verifyBalanceTotals());
+            check("spending totals match the rows" + writers, user.verifySpendingTotals()
+                && user.spentCentsBetween(user.categories.get(0), Integer.MIN_VALUE, Integer.MAX_VALUE) == expectedSpent[0]
+                && user.spentCentsBetween(user.categories.get(1), Integer.MIN_VALUE, Integer.MAX_VALUE) == expectedSpent[1]);
+            check("no read saw a change half made" + writers, tornReads.get() == 0);
+            check("snapshots stay as of when they were taken" + writers, movedSnapshots.get() == 0);
+        }
+
+        /**
+         * A change that throws reaches its caller and leaves the user
+         * taking further changes.
+         */
+        private void failedChange() {
+            User user = writerUser();
+            boolean thrown = false;
+            try {
+                user.change(() -> {
+                    throw new IllegalStateException("Failed on purpose");
+                });
+            } catch (IllegalStateException e) {
+                thrown = true;
+            }
+            user.addTransaction(-100, (int) SyntheticData.LAST_DAY.toEpochDay(), "After", user.categories.get(0), user.accounts.get(0));
+            check("a failed change throws to its caller", thrown);
+            check("changes carry on after a failed one", user.transactions.size() == 1 && user.accounts.get(0).balanceCents == -100);
+        }
+
+        /**
+         * A user with an asset and a liability account and two categories,
+         * for writeConcurrently.
+         */
+        static User writerUser() {
+            User user = new User("writers", "");
+            user.addAccount(new Account("Checking", 0, true));
+            user.addAccount(new Account("Credit Card", 0, false));
+            user.addCategory(new Category("Groceries"));
+            user.addCategory(new Category("Travel"));
+            return user;
+        }
+
+        /**
+         * Has the given number of threads add transactions to a writerUser
+         * at once, with no locking of their own.
+         * @return The number of rows added
+         */
+        static int writeConcurrently(ExecutorService executor, User user, int threads, int perThread) throws Exception {
+            int firstDay = (int) SyntheticData.LAST_DAY.toEpochDay() - 365;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> running = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                running.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        // Spread over both accounts and categories, and out of date order
+                        user.addTransaction(-(i % 100 + 1), firstDay + (i * 37 + thread) % 365, "Writer " + thread,
+                            user.categories.get(i & 1), user.accounts.get((thread + i) & 1));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : running) {
+                f.get();
+            }
+            return threads * perThread;
+        }
     }
-}
\ No newline at end of file
+}